@@ -0,0 +1,113 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the node.js server: a loopback TCP server that sends back whatever it gets,
+ * with one thread accepting and one thread per connection.
+ */
+class EchoServer {
+
+    private final ServerSocket mServer;
+    private final List<Socket> mConnections = new ArrayList<Socket>();
+    private volatile boolean mStopped = false;
+
+    EchoServer() throws IOException {
+        mServer = new ServerSocket();
+        mServer.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Accept();
+            }
+        }, "EchoServer-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int GetPort() {
+        return mServer.getLocalPort();
+    }
+
+    // the accept thread plus one per connection
+    public synchronized int GetThreadCount() {
+        return 1 + mConnections.size();
+    }
+
+    private void Accept() {
+        while (!mStopped) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+
+            synchronized (this) {
+                mConnections.add(socket);
+            }
+            Thread echoThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Echo(socket);
+                }
+            }, "EchoServer-echo");
+            echoThread.setDaemon(true);
+            echoThread.start();
+        }
+    }
+
+    private void Echo(Socket socket) {
+        byte[] buffer = new byte[1024 * 16];
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // the connection went away, nothing to report
+        }
+
+        synchronized (this) {
+            mConnections.remove(socket);
+        }
+        CloseQuietly(socket);
+    }
+
+    public void Stop() {
+        mStopped = true;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            // already closed
+        }
+
+        List<Socket> connections;
+        synchronized (this) {
+            connections = new ArrayList<Socket>(mConnections);
+        }
+        for (Socket socket : connections) {
+            CloseQuietly(socket);
+        }
+    }
+
+    private static void CloseQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package io.jxcore.node;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through the whole relay: client -> BtToRequestSocket -> in-memory "Bluetooth" link ->
+ * BtToServerSocket -> echo server, and back the same way.
+ *
+ * Every invocation writes one chunk on each peer's connection, then reads all of them back, so the peers
+ * share the relay engine like the links of one device do. relayRound reports round trips per second plus
+ * the bytes relayed per second (the "bytes" counter), relayRoundLatency the distribution of round trip
+ * times, and both report the threads the relay runs on ("relayThreads"). Run with -prof gc for the
+ * allocation rate.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class RelayBenchmark {
+
+    @Param({"256", "4096", "65536"})
+    public int chunkSize;
+
+    @Param({"1", "8", "32"})
+    public int peers;
+
+    @Param({"plain", "multiplexed"})
+    public String framing;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void Reset() {
+            bytes = 0;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Threads {
+        public int relayThreads;
+    }
+
+    private static final BtSocketDisconnectedCallBack IGNORE_DISCONNECT = new BtSocketDisconnectedCallBack() {
+        @Override
+        public void Disconnected(Thread who, String error) {
+            // the links only go down in TearDown
+        }
+    };
+
+    private RelayEngine mRelayEngine;
+    private LocalConnector mLocalConnector;
+    private EchoServer mEchoServer;
+    private final List<BtToSocketBase> mLinks = new ArrayList<BtToSocketBase>();
+    private final List<Socket> mClients = new ArrayList<Socket>();
+    private InputStream[] mIn;
+    private OutputStream[] mOut;
+    private byte[] mChunk;
+    private byte[] mReadBuffer;
+    private int mRelayThreads;
+
+    @Setup(Level.Trial)
+    public void Setup() throws Exception {
+        RelayLog.SetSink(null);
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        mEchoServer = new EchoServer();
+        mRelayEngine = new RelayEngine();
+        mRelayEngine.Start();
+        mLocalConnector = new LocalConnector(mRelayEngine);
+        mLocalConnector.SetPort(mEchoServer.GetPort());
+
+        mIn = new InputStream[peers];
+        mOut = new OutputStream[peers];
+        for (int i = 0; i < peers; i++) {
+            MemoryLinkTransport[] link = MemoryLinkTransport.CreatePair(MemoryLinkTransport.DEFAULT_PIPE_CAPACITY);
+
+            BtToServerSocket server = new BtToServerSocket(link[1], IGNORE_DISCONNECT, mRelayEngine);
+            server.setLocalConnector(mLocalConnector);
+            server.start();
+            mLinks.add(server);
+
+            BtToRequestSocket request = new BtToRequestSocket(link[0], IGNORE_DISCONNECT, null, mRelayEngine);
+            request.SetMultiplex(framing.equals("multiplexed"));
+            request.start();
+            mLinks.add(request);
+
+            int port = request.AwaitListeningPort(5000);
+            if (port == 0) {
+                throw new IOException("link " + i + " did not start listening");
+            }
+
+            Socket client = new Socket(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), port);
+            client.setTcpNoDelay(true);
+            mClients.add(client);
+            mIn[i] = client.getInputStream();
+            mOut[i] = client.getOutputStream();
+        }
+
+        mChunk = new byte[chunkSize];
+        new Random(42).nextBytes(mChunk);
+        mReadBuffer = new byte[chunkSize];
+
+        // one full round trip per peer, so every link has made its local connection before we count
+        RelayRound();
+        mRelayThreads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore - mEchoServer.GetThreadCount();
+    }
+
+    @TearDown(Level.Trial)
+    public void TearDown() {
+        for (Socket client : mClients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        for (BtToSocketBase link : mLinks) {
+            link.Stop();
+        }
+        mLocalConnector.Clear();
+        mRelayEngine.Stop();
+        mEchoServer.Stop();
+        mClients.clear();
+        mLinks.clear();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int relayRound(Traffic traffic, Threads threads) throws IOException {
+        threads.relayThreads = mRelayThreads;
+        int checksum = RelayRound();
+        traffic.bytes += 2L * chunkSize * peers;
+        return checksum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void relayRoundLatency(Threads threads, Blackhole blackhole) throws IOException {
+        threads.relayThreads = mRelayThreads;
+        blackhole.consume(RelayRound());
+    }
+
+    // returns something from the data read back, so the reads can not be optimized away
+    private int RelayRound() throws IOException {
+        for (int i = 0; i < peers; i++) {
+            mOut[i].write(mChunk);
+        }
+
+        int checksum = 0;
+        for (int i = 0; i < peers; i++) {
+            int offset = 0;
+            while (offset < chunkSize) {
+                int n = mIn[i].read(mReadBuffer, offset, chunkSize - offset);
+                if (n == -1) {
+                    throw new IOException("peer " + i + " connection closed");
+                }
+                offset += n;
+            }
+            checksum += mReadBuffer[chunkSize - 1];
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,281 @@
+package io.jxcore.node;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Decides whether a new outgoing link may be made, from what the relay is doing right now.
+ *
+ * The limit starts from what the memory we may use allows for links of the current size, and is lowered to
+ * the links we already have when the buffer pool holds too much, when the radio is saturated (most links are
+ * waiting for their turn and throughput no longer grows), or in proportion to how many recent connects failed.
+ * Connects over the limit are rejected, queued until there is room, or make room by evicting the least
+ * recently used link, depending on the policy.
+ */
+class AdmissionController {
+
+    enum Policy { REJECT, QUEUE, EVICT_LRU }
+
+    enum Decision { ADMIT, REJECT, QUEUE, EVICT }
+
+    // one snapshot of the relay, filled in by the caller for every decision
+    static class Load {
+        // relay threads, i.e. outgoing, incoming and pooled links plus connects in progress
+        int activeLinks;
+        int outstandingBuffers;
+        int bufferSize;
+        // memory a link may hold: its queues up to the high watermark and its buffers
+        int perLinkBytes;
+        // everything relayed so far, over all links
+        long totalBytes;
+        int waitingForRadio;
+    }
+
+    static class PendingConnect {
+        final String peerId;
+        final BtConnectorHelper.ConnectStatusCallback callback;
+        final long queuedNanos = System.nanoTime();
+
+        PendingConnect(String peerId, BtConnectorHelper.ConnectStatusCallback callback) {
+            this.peerId = peerId;
+            this.callback = callback;
+        }
+    }
+
+    public static final int DEFAULT_MAX_LINKS = 100;
+    public static final int DEFAULT_MAX_QUEUED = 16;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+    // the share of the heap the links together may use
+    private static final int MEMORY_SHARE_DIVISOR = 4;
+    // reader thread stack and bookkeeping of one link, on top of its buffers
+    private static final int LINK_OVERHEAD_BYTES = 1024 * 64;
+    // connect outcomes are averaged with this weight for the newest one
+    private static final double FAILURE_RATE_WEIGHT = 0.2;
+    private static final int MIN_CONNECT_SAMPLES = 4;
+    private static final long MIN_THROUGHPUT_SAMPLE_NANOS = 1000000000L;
+
+    private Policy mPolicy = Policy.REJECT;
+    private int mMaxLinks = DEFAULT_MAX_LINKS;
+    private int mMaxQueued = DEFAULT_MAX_QUEUED;
+    private long mQueueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+    private final LinkedList<PendingConnect> mQueue = new LinkedList<PendingConnect>();
+
+    private double mFailureRate = 0;
+    private long mConnectSamples = 0;
+
+    private long mLastTotalBytes = 0;
+    private long mLastSampleNanos = System.nanoTime();
+    private long mThroughput = 0;
+    private long mPeakThroughput = 0;
+
+    private int mLimit = DEFAULT_MAX_LINKS;
+    private String mLimitReason = "maxLinks";
+    private final HashMap<String, Long> mRejections = new HashMap<String, Long>();
+    private String mLastRejection = null;
+    private long mAdmitted = 0;
+    private long mEvicted = 0;
+    private long mQueuedTotal = 0;
+    private long mQueueNanos = 0;
+
+    public synchronized void SetPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public synchronized void SetMaxLinks(int maxLinks) {
+        mMaxLinks = Math.max(1, maxLinks);
+    }
+
+    public synchronized void SetMaxQueued(int maxQueued) {
+        mMaxQueued = Math.max(0, maxQueued);
+    }
+
+    public synchronized void SetQueueTimeoutMillis(long timeoutMillis) {
+        mQueueTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    public synchronized long GetQueueTimeoutMillis() {
+        return mQueueTimeoutMillis;
+    }
+
+    public synchronized void RecordConnectResult(boolean succeeded) {
+        mConnectSamples++;
+        mFailureRate = mFailureRate * (1 - FAILURE_RATE_WEIGHT) + (succeeded ? 0 : FAILURE_RATE_WEIGHT);
+    }
+
+    // whether the load has reached the limit, without counting anything as a rejection
+    public synchronized boolean IsAtLimit(Load load) {
+        UpdateLimit(load);
+        return load.activeLinks >= mLimit;
+    }
+
+    // REJECT and QUEUE decisions are final, EVICT means the caller should free a link and ask again
+    public synchronized Decision Decide(Load load, boolean mayQueue) {
+        UpdateLimit(load);
+        if (load.activeLinks < mLimit) {
+            mAdmitted++;
+            return Decision.ADMIT;
+        }
+
+        switch (mPolicy) {
+            case EVICT_LRU:
+                return Decision.EVICT;
+            case QUEUE:
+                if (mayQueue && mQueue.size() < mMaxQueued) {
+                    return Decision.QUEUE;
+                }
+                Reject(mayQueue ? "admission queue full" : mLimitReason);
+                return Decision.REJECT;
+            default:
+                Reject(mLimitReason);
+                return Decision.REJECT;
+        }
+    }
+
+    // the caller found nothing to evict for an EVICT decision
+    public synchronized void EvictFailed() {
+        Reject(mLimitReason + ", nothing to evict");
+    }
+
+    public synchronized void RecordEvicted() {
+        mEvicted++;
+    }
+
+    public synchronized void Enqueue(PendingConnect pending) {
+        mQueue.add(pending);
+        mQueuedTotal++;
+    }
+
+    // the oldest queued connect, or null
+    public synchronized PendingConnect PollQueued() {
+        PendingConnect pending = mQueue.poll();
+        if (pending != null) {
+            mQueueNanos += System.nanoTime() - pending.queuedNanos;
+        }
+        return pending;
+    }
+
+    // puts a connect that still does not fit back to the head of the queue
+    public synchronized void Requeue(PendingConnect pending) {
+        mQueueNanos -= System.nanoTime() - pending.queuedNanos;
+        mQueue.addFirst(pending);
+    }
+
+    // takes out the connects that have waited too long, the caller reports the error
+    public synchronized LinkedList<PendingConnect> RemoveTimedOut() {
+        LinkedList<PendingConnect> timedOut = new LinkedList<PendingConnect>();
+        long now = System.nanoTime();
+        while (!mQueue.isEmpty() && (now - mQueue.peek().queuedNanos) / 1000000 >= mQueueTimeoutMillis) {
+            PendingConnect pending = mQueue.poll();
+            mQueueNanos += now - pending.queuedNanos;
+            timedOut.add(pending);
+            Reject("timed out in admission queue");
+        }
+        return timedOut;
+    }
+
+    public synchronized LinkedList<PendingConnect> RemoveAllQueued() {
+        LinkedList<PendingConnect> removed = new LinkedList<PendingConnect>(mQueue);
+        mQueue.clear();
+        return removed;
+    }
+
+    public synchronized int GetQueuedCount() {
+        return mQueue.size();
+    }
+
+    public synchronized String GetLastRejection() {
+        return mLastRejection;
+    }
+
+    private void UpdateLimit(Load load) {
+        long now = System.nanoTime();
+        if (now - mLastSampleNanos >= MIN_THROUGHPUT_SAMPLE_NANOS) {
+            mThroughput = Math.max(0, load.totalBytes - mLastTotalBytes) * 1000000000L / (now - mLastSampleNanos);
+            mPeakThroughput = Math.max(mPeakThroughput, mThroughput);
+            mLastTotalBytes = load.totalBytes;
+            mLastSampleNanos = now;
+        }
+
+        int limit = mMaxLinks;
+        String reason = "maxLinks";
+
+        long memoryBudget = Runtime.getRuntime().maxMemory() / MEMORY_SHARE_DIVISOR;
+        int memoryLimit = (int) Math.max(1, memoryBudget / (load.perLinkBytes + LINK_OVERHEAD_BYTES));
+        if (memoryLimit < limit) {
+            limit = memoryLimit;
+            reason = "memory";
+        }
+
+        // buffers in use already take half of what all links together may have
+        if ((long) load.outstandingBuffers * load.bufferSize > memoryBudget / 2 && load.activeLinks < limit) {
+            limit = Math.max(1, load.activeLinks);
+            reason = "buffer pool";
+        }
+
+        // most links are queued for the radio and adding links has not made the total any faster
+        if (load.waitingForRadio > 0 && load.waitingForRadio * 2 >= load.activeLinks
+                && mThroughput * 10 >= mPeakThroughput * 8 && load.activeLinks < limit) {
+            limit = Math.max(1, load.activeLinks);
+            reason = "radio saturated";
+        }
+
+        // the room left shrinks with the share of connects that have been failing lately
+        if (mConnectSamples >= MIN_CONNECT_SAMPLES && load.activeLinks < limit) {
+            int failureLimit = load.activeLinks + (int) ((limit - load.activeLinks) * (1 - mFailureRate));
+            if (failureLimit < limit) {
+                limit = Math.max(1, failureLimit);
+                reason = "connect failures";
+            }
+        }
+
+        if (limit != mLimit) {
+            RelayLog.i("AdmissionController", "Link limit now " + limit + " (" + reason + ")");
+        }
+        mLimit = limit;
+        mLimitReason = reason;
+    }
+
+    private void Reject(String reason) {
+        Long count = mRejections.get(reason);
+        mRejections.put(reason, count == null ? 1 : count + 1);
+        mLastRejection = reason;
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("policy", mPolicy.name());
+            stats.put("limit", mLimit);
+            stats.put("limitReason", mLimitReason);
+            stats.put("maxLinks", mMaxLinks);
+            stats.put("failureRate", mFailureRate);
+            stats.put("throughputBytesPerSecond", mThroughput);
+            stats.put("peakThroughputBytesPerSecond", mPeakThroughput);
+            stats.put("admitted", mAdmitted);
+            stats.put("evicted", mEvicted);
+            stats.put("queued", mQueue.size());
+            stats.put("queuedTotal", mQueuedTotal);
+            long dequeued = mQueuedTotal - mQueue.size();
+            stats.put("averageQueueMillis", dequeued <= 0 ? 0 : mQueueNanos / dequeued / 1000000);
+            if (mLastRejection != null) {
+                stats.put("lastRejection", mLastRejection);
+            }
+
+            JSONObject rejections = new JSONObject();
+            for (Map.Entry<String, Long> rejection : mRejections.entrySet()) {
+                rejections.put(rejection.getKey(), rejection.getValue());
+            }
+            stats.put("rejections", rejections);
+        } catch (JSONException e) {
+            Log.i("AdmissionController","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+}
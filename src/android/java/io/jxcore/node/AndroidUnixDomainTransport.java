@@ -0,0 +1,136 @@
+package io.jxcore.node;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Unix-domain connections over android.net.LocalSocket, in the abstract namespace.
+ *
+ * The abstract namespace is shared by all apps on the device, so every name gets the app's package name
+ * in front, e.g. org.example.app.thali_server_8080, and a connection whose other end runs under another
+ * user id than ours is refused in either direction.
+ */
+class AndroidUnixDomainTransport implements UnixDomainTransport {
+
+    private final String mNamePrefix;
+
+    AndroidUnixDomainTransport(String packageName) {
+        mNamePrefix = packageName + ".";
+    }
+
+    private static class SocketTransport implements LinkTransport {
+        private final LocalSocket mSocket;
+
+        SocketTransport(LocalSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public InputStream GetInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream GetOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public void ShutdownOutput() throws IOException {
+            mSocket.shutdownOutput();
+        }
+
+        @Override
+        public void Close() throws IOException {
+            // close alone does not always wake up a read blocked on another thread
+            try {
+                mSocket.shutdownInput();
+            } finally {
+                mSocket.close();
+            }
+        }
+    }
+
+    private static class ServerListener implements Listener {
+        private final String mName;
+        private final LocalServerSocket mServer;
+
+        ServerListener(String name, LocalServerSocket server) {
+            mName = name;
+            mServer = server;
+        }
+
+        @Override
+        public LinkTransport Accept() throws IOException {
+            while (true) {
+                LocalSocket socket = mServer.accept();
+                if (IsOwnApp(socket)) {
+                    return new SocketTransport(socket);
+                }
+                Log.w("AndroidUnixDomain", "Refused connection to " + mName + " from another app");
+                CloseQuietly(socket);
+            }
+        }
+
+        @Override
+        public void Close() {
+            // closing does not wake up a blocked accept, a connection of our own does.
+            // The accepting side must check whether it was closed before using what it got
+            LocalSocket wakeUp = new LocalSocket();
+            try {
+                wakeUp.connect(new LocalSocketAddress(mName, LocalSocketAddress.Namespace.ABSTRACT));
+            } catch (IOException e) {
+                Log.i("AndroidUnixDomain", "Accept wake up failed : " + e.toString());
+            }
+            CloseQuietly(wakeUp);
+
+            try {
+                mServer.close();
+            } catch (IOException e) {
+                Log.i("AndroidUnixDomain", "Close error : " + e.toString());
+            }
+        }
+    }
+
+    @Override
+    public LinkTransport Connect(String name) throws IOException {
+        String fullName = mNamePrefix + name;
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(fullName, LocalSocketAddress.Namespace.ABSTRACT));
+            if (!IsOwnApp(socket)) {
+                throw new IOException("Unix-domain socket " + fullName + " belongs to another app");
+            }
+        } catch (IOException e) {
+            CloseQuietly(socket);
+            throw e;
+        }
+        return new SocketTransport(socket);
+    }
+
+    @Override
+    public Listener Listen(String name) throws IOException {
+        String fullName = mNamePrefix + name;
+        return new ServerListener(fullName, new LocalServerSocket(fullName));
+    }
+
+    // node.js runs in our own process, so the other end must have our user id
+    private static boolean IsOwnApp(LocalSocket socket) throws IOException {
+        return socket.getPeerCredentials().getUid() == Process.myUid();
+    }
+
+    private static void CloseQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.i("AndroidUnixDomain", "Close error : " + e.toString());
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which link gets to write to Bluetooth next, and how much.
+ *
+ * Links with data waiting take turns in deficit round robin order: every turn adds quantum * weight
+ * bytes of credit, so a link with weight 4 gets four times the share of a link with weight 1, and a
+ * small sync gets its turn after at most one quantum of each bulk transfer instead of waiting for it.
+ * Peers can also have a token bucket rate limit, a link of a peer that is over its rate waits until
+ * enough tokens have come in.
+ */
+class BandwidthScheduler {
+
+    interface Writer {
+        // writes about budgetBytes from the link's queue, at least one frame, returns bytes written or -1 on error
+        int WriteQuantum(int budgetBytes);
+        boolean HasPendingWrites();
+        String GetPeerId();
+        void SchedulerFailed(String error);
+    }
+
+    public static final int DEFAULT_QUANTUM = 1024 * 4;
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int MAX_WEIGHT = 100;
+
+    // one per link, owned by the scheduler
+    static class Entry {
+        private final Writer mWriter;
+        private int mDeficit = 0;
+        // in the ring, running or waiting for tokens
+        private boolean mQueued = false;
+        private boolean mRemoved = false;
+        // the settings of the link's peer, bound on its first turn, when the peer id is known
+        private String mPeerKey = null;
+        private PeerSettings mSettings = null;
+
+        private Entry(Writer writer) {
+            mWriter = writer;
+        }
+    }
+
+    private static class PeerSettings {
+        int weight = DEFAULT_WEIGHT;
+        long rateBytesPerSecond = 0;
+        double tokens = 0;
+        long lastRefillNanos = System.nanoTime();
+        long bytesSent = 0;
+        long throttledCount = 0;
+        // set through SetPeerPriority, such settings are kept while the peer has no links
+        boolean configured = false;
+        int links = 0;
+
+        long Burst(int quantum) {
+            return Math.max(quantum, rateBytesPerSecond / 4);
+        }
+
+        void Refill(long nowNanos, int quantum) {
+            if (rateBytesPerSecond > 0) {
+                tokens = Math.min(Burst(quantum), tokens + (nowNanos - lastRefillNanos) * rateBytesPerSecond / 1000000000.0);
+            }
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+    private final RelayEngine mRelayEngine;
+    private final LinkedList<Entry> mActive = new LinkedList<Entry>();
+    // keyed by lower cased peer id. Settings given with SetPeerPriority stay for links that come later,
+    // the others go, with their stats, when the peer's last link is removed
+    private final HashMap<String, PeerSettings> mPeers = new HashMap<String, PeerSettings>();
+
+    private int mQuantum = DEFAULT_QUANTUM;
+    private int mMaxConcurrent;
+    private int mRunning = 0;
+
+    BandwidthScheduler(RelayEngine relayEngine, int maxConcurrent) {
+        mRelayEngine = relayEngine;
+        mMaxConcurrent = maxConcurrent;
+    }
+
+    public Entry Add(Writer writer) {
+        return new Entry(writer);
+    }
+
+    public synchronized void Remove(Entry entry) {
+        if (entry.mRemoved) {
+            return;
+        }
+        entry.mRemoved = true;
+        mActive.remove(entry);
+
+        PeerSettings settings = entry.mSettings;
+        if (settings != null && --settings.links == 0 && !settings.configured) {
+            mPeers.remove(entry.mPeerKey);
+        }
+    }
+
+    // the link has queued data, it gets its turn once the links ahead of it have had theirs
+    public void Ready(Entry entry) {
+        synchronized (this) {
+            if (entry.mQueued || entry.mRemoved) {
+                return;
+            }
+            entry.mQueued = true;
+            mActive.add(entry);
+        }
+        Dispatch();
+    }
+
+    // weight is the share relative to other peers, rateBytesPerSecond 0 means no limit
+    public synchronized void SetPeerPriority(String peerId, int weight, long rateBytesPerSecond) {
+        String key = PeerKey(peerId);
+        PeerSettings settings = GetPeerSettings(key);
+        settings.weight = Math.max(1, Math.min(MAX_WEIGHT, weight));
+        settings.rateBytesPerSecond = Math.max(0, rateBytesPerSecond);
+        settings.tokens = settings.Burst(mQuantum);
+        settings.lastRefillNanos = System.nanoTime();
+
+        // back to the defaults is the same as never having been set
+        settings.configured = settings.weight != DEFAULT_WEIGHT || settings.rateBytesPerSecond > 0;
+        if (!settings.configured && settings.links == 0) {
+            mPeers.remove(key);
+        }
+    }
+
+    public synchronized void SetQuantum(int quantum) {
+        mQuantum = Math.max(RelayBufferPool.MIN_BUFFER_SIZE, quantum);
+    }
+
+    public void SetMaxConcurrent(int maxConcurrent) {
+        synchronized (this) {
+            mMaxConcurrent = Math.max(1, maxConcurrent);
+        }
+        Dispatch();
+    }
+
+    private static String PeerKey(String peerId) {
+        return peerId == null ? "" : peerId.toLowerCase(Locale.US);
+    }
+
+    private PeerSettings GetPeerSettings(String key) {
+        PeerSettings settings = mPeers.get(key);
+        if (settings == null) {
+            settings = new PeerSettings();
+            mPeers.put(key, settings);
+        }
+        return settings;
+    }
+
+    // must be called with the lock held
+    private PeerSettings SettingsFor(Entry entry) {
+        if (entry.mSettings == null) {
+            entry.mPeerKey = PeerKey(entry.mWriter.GetPeerId());
+            entry.mSettings = GetPeerSettings(entry.mPeerKey);
+            entry.mSettings.links++;
+        }
+        return entry.mSettings;
+    }
+
+    private void Dispatch() {
+        List<Entry> toRun = new ArrayList<Entry>();
+        List<Integer> budgets = new ArrayList<Integer>();
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (mRunning < mMaxConcurrent && !mActive.isEmpty()) {
+                Entry entry = mActive.poll();
+                PeerSettings settings = SettingsFor(entry);
+
+                entry.mDeficit += mQuantum * settings.weight;
+                if (entry.mDeficit <= 0) {
+                    // still paying off an earlier large frame, skip this round
+                    mActive.add(entry);
+                    continue;
+                }
+
+                int budget = entry.mDeficit;
+                if (settings.rateBytesPerSecond > 0) {
+                    settings.Refill(now, mQuantum);
+                    if (settings.tokens < 1) {
+                        entry.mDeficit -= mQuantum * settings.weight;
+                        settings.throttledCount++;
+                        WaitForTokens(entry, (long) ((1 - settings.tokens) * 1000000 / settings.rateBytesPerSecond) + 1);
+                        continue;
+                    }
+                    budget = (int) Math.min(budget, settings.tokens);
+                }
+
+                mRunning++;
+                toRun.add(entry);
+                budgets.add(budget);
+            }
+        }
+
+        for (int i = 0; i < toRun.size(); i++) {
+            final Entry entry = toRun.get(i);
+            final int budget = budgets.get(i);
+            boolean started = mRelayEngine.ExecuteBtWrite(new Runnable() {
+                @Override
+                public void run() {
+                    RunQuantum(entry, budget);
+                }
+            });
+
+            if (!started) {
+                synchronized (this) {
+                    mRunning--;
+                    entry.mQueued = false;
+                }
+                entry.mWriter.SchedulerFailed("relay engine is not running");
+            }
+        }
+    }
+
+    // must be called with the lock held
+    private void WaitForTokens(final Entry entry, long delayMicros) {
+        boolean scheduled = mRelayEngine.ScheduleBtWrite(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BandwidthScheduler.this) {
+                    if (entry.mRemoved) {
+                        return;
+                    }
+                    mActive.add(entry);
+                }
+                Dispatch();
+            }
+        }, delayMicros);
+
+        if (!scheduled) {
+            entry.mQueued = false;
+            RelayLog.w("BandwidthScheduler", "Could not schedule rate limited link, relay engine is not running");
+        }
+    }
+
+    private void RunQuantum(Entry entry, int budget) {
+        int written = entry.mWriter.WriteQuantum(budget);
+
+        synchronized (this) {
+            mRunning--;
+            if (written > 0) {
+                PeerSettings settings = SettingsFor(entry);
+                settings.bytesSent += written;
+                if (settings.rateBytesPerSecond > 0) {
+                    settings.tokens -= written;
+                }
+                entry.mDeficit -= written;
+            }
+
+            if (written >= 0 && !entry.mRemoved && entry.mWriter.HasPendingWrites()) {
+                mActive.add(entry);
+            } else {
+                // an idle link does not save up credit
+                entry.mQueued = false;
+                entry.mDeficit = Math.min(0, entry.mDeficit);
+            }
+        }
+
+        Dispatch();
+    }
+
+    // links with data queued that are waiting for their turn
+    public synchronized int GetWaitingCount() {
+        return mActive.size();
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("quantum", mQuantum);
+            stats.put("maxConcurrent", mMaxConcurrent);
+            stats.put("running", mRunning);
+            stats.put("waiting", mActive.size());
+
+            JSONObject peers = new JSONObject();
+            for (Map.Entry<String, PeerSettings> peer : mPeers.entrySet()) {
+                PeerSettings settings = peer.getValue();
+                JSONObject json = new JSONObject();
+                json.put("weight", settings.weight);
+                json.put("rateBytesPerSecond", settings.rateBytesPerSecond);
+                json.put("bytesSent", settings.bytesSent);
+                json.put("throttledCount", settings.throttledCount);
+                peers.put(peer.getKey(), json);
+            }
+            stats.put("peers", peers);
+        } catch (JSONException e) {
+            RelayLog.w("BandwidthScheduler","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,40 @@
+package io.jxcore.node;
+
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The Bluetooth connection of a relay link.
+ */
+class BluetoothLinkTransport implements LinkTransport {
+
+    private final BluetoothSocket mSocket;
+
+    BluetoothLinkTransport(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    @Override
+    public InputStream GetInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream GetOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void ShutdownOutput() throws IOException {
+        // closing either stream of a BluetoothSocket closes the whole socket
+        throw new IOException("Bluetooth sockets can not be half closed");
+    }
+
+    @Override
+    public void Close() throws IOException {
+        mSocket.close();
+    }
+}
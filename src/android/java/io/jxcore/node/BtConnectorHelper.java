@@ -3,6 +3,7 @@ package io.jxcore.node;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.os.Handler;
 
 import android.util.Log;
@@ -15,9 +16,10 @@ import org.thaliproject.p2p.btconnectorlib.BTConnectorSettings;
 import org.thaliproject.p2p.btconnectorlib.ServiceItem;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -32,15 +34,67 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
     private final String Bt_NAME               = "Thaili_Bluetooth";
 
 
-    private final CopyOnWriteArrayList<ServiceItem> lastAvailableList = new CopyOnWriteArrayList<ServiceItem>();
+    private final PeerRegistry mPeerRegistry = new PeerRegistry();
+    private final PeerAvailabilityMonitor mAvailabilityMonitor;
+    private final ConnectScheduler mConnectScheduler;
+
+    // how quickly the port reached JS after the local server socket was ready, we used to wait fixed 300 ms here
+    private static final long OLD_FIXED_PORT_DELAY_MILLIS = 300;
+    private final AtomicLong mPortReportCount = new AtomicLong(0);
+    private final AtomicLong mPortReportDelayNanos = new AtomicLong(0);
 
     private final BTConnectorSettings conSettings;
-    private BTConnector mBTConnector = null;
+    // the real BTConnector, or a PeerSwarmSimulator playing its part
+    private PeerConnector mBTConnector = null;
+    // the last simulation, kept for its stats
+    private volatile PeerSwarmSimulator mSimulator = null;
+
+    private final ConnectionTable<BtToServerSocket> mServerSocketList = new ConnectionTable<BtToServerSocket>();
+    private final ConnectionTable<BtToRequestSocket> mRequestSocketList = new ConnectionTable<BtToRequestSocket>();
 
-    private final CopyOnWriteArrayList<BtToServerSocket> mServerSocketList = new CopyOnWriteArrayList<BtToServerSocket>();
-    private final CopyOnWriteArrayList<BtToRequestSocket> mRequestSocketList = new CopyOnWriteArrayList<BtToRequestSocket>();
+    // shared localhost selector & Bluetooth writers used by all bridged connections
+    private final RelayEngine mRelayEngine = new RelayEngine();
+    // connections from incoming links to our local server, optionally kept warm
+    private final LocalConnector mLocalConnector = new LocalConnector(mRelayEngine);
 
     private int mServerPort = 0;
+    private volatile boolean mUnixDomain = false;
+    private final UnixDomainTransport mUnixDomainTransport;
+
+    // write coalescing settings given to new connections, see SetRelayOptions
+    private volatile int mDefaultCoalesceBytes = 0;
+    private volatile long mDefaultCoalesceDelayMicros = 0;
+    // queue watermarks given to new connections, see SetRelayOptions
+    private volatile int mDefaultHighWatermark = BtToSocketBase.DEFAULT_HIGH_WATERMARK;
+    private volatile int mDefaultLowWatermark = BtToSocketBase.DEFAULT_LOW_WATERMARK;
+    // whether new outgoing links ask the remote peer to carry all local connections over one link
+    private volatile boolean mMultiplex = false;
+    // whether new outgoing links ask for compressed data frames, and the smallest frame worth compressing
+    private volatile boolean mCompress = false;
+    private volatile int mCompressThreshold = BtToSocketBase.DEFAULT_COMPRESS_THRESHOLD;
+    // how long a local connection may stay half closed without data, 0 turns half-close off for new links
+    private volatile long mHalfCloseTimeoutMillis = BtToSocketBase.DEFAULT_HALF_CLOSE_TIMEOUT_MILLIS;
+    // how long new incoming links wait for a hello before they are taken as plain
+    private volatile long mHelloWaitMillis = BtToServerSocket.DEFAULT_HELLO_WAIT_MILLIS;
+    // when > 0 framed outgoing links outlive their local connections and are handed out again by Connect,
+    // until they have been without a local connection for this long
+    private volatile long mKeepAliveIdleMillis = 0;
+    private final AtomicLong mLinksReused = new AtomicLong(0);
+
+    // outgoing links JS has disconnected from, kept open so the next Connect to the same peer is instant
+    private final LinkPool mLinkPool = new LinkPool();
+    // a classic Bluetooth radio has room for 7 active links, idle pooled links go first when we get close to that
+    public static final int DEFAULT_POOL_PRESSURE_LINKS = 6;
+    private volatile int mPoolPressureLinks = DEFAULT_POOL_PRESSURE_LINKS;
+
+    // decides from the current load whether another outgoing link may be made
+    private final AdmissionController mAdmission = new AdmissionController();
+    private static final long ADMISSION_CHECK_MILLIS = 1000;
+    private Handler mAdmissionHandler = null;
+    private boolean mAdmissionCheckScheduled = false;
+
+    // how many incoming links are bridged to the local server at once, the rest wait in its queue
+    private final InboundAdmission mInbound = new InboundAdmission();
 
     // implementation which forwards any uncaught exception from threads to the Jxcore
     final Thread.UncaughtExceptionHandler mThreadUncaughtExceptionHandler = new Thread.UncaughtExceptionHandler() {
@@ -57,81 +111,216 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
     };
 
     public BtConnectorHelper() {
+        // the relay core logs through RelayLog, on the device it goes to logcat
+        RelayLog.SetSink(new RelayLog.Sink() {
+            @Override
+            public void Write(RelayLog.Level level, String tag, String message) {
+                if (level == RelayLog.Level.WARN) {
+                    Log.w(tag, message);
+                } else {
+                    Log.i(tag, message);
+                }
+            }
+        });
+
         conSettings = new BTConnectorSettings();
         conSettings.SERVICE_TYPE = serviceTypeIdentifier;
         conSettings.MY_UUID = UUID.fromString(BtUUID);
         conSettings.MY_NAME = Bt_NAME;
         this.context = jxcore.activity.getBaseContext();
+        mUnixDomainTransport = new AndroidUnixDomainTransport(context.getPackageName());
+
+        mAvailabilityMonitor = new PeerAvailabilityMonitor(mPeerRegistry, new PeerAvailabilityMonitor.PeerInUseCheck() {
+            @Override
+            public boolean IsPeerInUse(String peerId) {
+                return mRequestSocketList.HasPeer(peerId) || mServerSocketList.HasPeer(peerId) || mLinkPool.HasPeer(peerId);
+            }
+        });
+
+        mConnectScheduler = new ConnectScheduler(new ConnectScheduler.Connector() {
+            @Override
+            public ConnectScheduler.StartResult StartConnect(String peerId) {
+                return BtConnectorHelper.this.StartConnect(peerId);
+            }
+        });
     }
 
-    public BTConnector.WifiBtStatus Start(String peerName,int port){
-        this.mServerPort = port;
-       // this.lastAvailableList.clear();
-        Stop();
+    // unixDomain: node.js and the relay talk over abstract Unix-domain sockets instead of TCP loopback,
+    // see LocalConnector for the socket names. Throws if the relay can't be started, nothing is running then
+    public BTConnector.WifiBtStatus Start(String peerName,int port,boolean unixDomain) throws IOException {
+        StartRelay(port, unixDomain);
 
-        BTConnector tmpCon= new BTConnector(context,this,this,conSettings);
+        final BTConnector tmpCon= new BTConnector(context,this,this,conSettings);
         BTConnector.WifiBtStatus  ret = tmpCon.Start(GetBluetoothAddress(),peerName);
-        mBTConnector = tmpCon;
+        mBTConnector = new PeerConnector() {
+            @Override
+            public BTConnector.TryConnectReturnValues TryConnect(ServiceItem selectedDevice) {
+                return tmpCon.TryConnect(selectedDevice);
+            }
 
-        if(lastAvailableList.size() > 0) {
-            JSONArray jsonArray = new JSONArray();
-            for (ServiceItem item : lastAvailableList) {
-                jsonArray.put(getAvailabilityStatus(item, true));
+            @Override
+            public void Stop() {
+                tmpCon.Stop();
             }
-            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, jsonArray.toString());
-        }
+        };
 
+        StartAvailability();
         return ret;
     }
 
+    // plays the connector with a swarm of simulated peers instead of Bluetooth, see PeerSwarmSimulator.
+    // Stop ends the simulation, its stats stay in GetConnectionStats until the next one starts.
+    // Only debuggable builds can run it, a released app never plays fake peers to its JS side
+    public String StartSimulation(int port, JSONObject options) {
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            return "Peer simulation is only available in debuggable builds.";
+        }
+
+        PeerSwarmSimulator simulator = new PeerSwarmSimulator(this, mRelayEngine, mLocalConnector);
+        String error = simulator.Configure(options);
+        if (error != null) {
+            return error;
+        }
+
+        try {
+            StartRelay(port, false);
+        } catch (IOException e) {
+            return "Starting relay engine failed : " + e.toString();
+        }
+        mSimulator = simulator;
+        mBTConnector = simulator;
+        simulator.Start();
+
+        StartAvailability();
+        return null;
+    }
+
+    private void StartRelay(int port, boolean unixDomain) throws IOException {
+        this.mServerPort = port;
+        this.mUnixDomain = unixDomain;
+       // this.mPeerRegistry.Clear();
+        Stop();
+
+        try {
+            mRelayEngine.Start();
+        } catch (IOException e) {
+            RelayLog.w("BtConnectorHelper","Starting relay engine failed : " + e.toString());
+            throw e;
+        }
+
+        mLocalConnector.SetUnixDomain(unixDomain ? mUnixDomainTransport : null);
+        mLocalConnector.SetPort(port);
+    }
+
+    private void StartAvailability() {
+        NativeEventDispatcher dispatcher = NativeEventDispatcher.getInstance();
+        for (PeerRegistry.Entry entry : mPeerRegistry.GetAll()) {
+            dispatcher.Post(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, PeerAvailabilityMonitor.GetAvailabilityStatus(entry.item, true));
+        }
+
+        mAvailabilityMonitor.Start();
+    }
+
+    // sizes of the bookkeeping tables, watched by PeerSwarmSimulator
+    int GetKnownPeerCount() {
+        return mPeerRegistry.Size();
+    }
+
+    int GetOutgoingLinkCount() {
+        return mRequestSocketList.Size() + mLinkPool.Size();
+    }
+
+    int GetIncomingLinkCount() {
+        return mServerSocketList.Size();
+    }
+
     public boolean isRunning(){
         return mBTConnector != null;
     }
     public void Stop(){
 
-        BTConnector tmpCon = mBTConnector;
+        mAvailabilityMonitor.Stop();
+
+        PeerConnector tmpCon = mBTConnector;
         mBTConnector = null;
         if(tmpCon != null){
             tmpCon.Stop();
         }
 
+        mConnectScheduler.CancelAll("Device connectivity stopped before the connection was made");
+        for (AdmissionController.PendingConnect pending : mAdmission.RemoveAllQueued()) {
+            pending.callback.ConnectionStatusUpdate("Device connectivity stopped before the connection was made", -1);
+        }
+
         //disconnect all incoming connections
         DisconnectIncomingConnections();
 
         // disconnect outgoing connection
         DisconnectAll ();
+
+        mLocalConnector.Clear();
+        mRelayEngine.Stop();
     }
 
     // we only cut off our outgoing connections, incoming ones are cut off from the other end.
     // if we want to cut off whole communications, we'll do Stop
     public boolean Disconnect(String peerId){
 
-        for (BtToRequestSocket rSocket : mRequestSocketList) {
-            if (rSocket != null) {
-                String currentPeerId = rSocket.GetPeerId();
-                if (peerId.equalsIgnoreCase(currentPeerId)) {
-                    mRequestSocketList.remove(rSocket);
-                    Log.i("BtConnectorHelper", "Disconnect outgoing peer: " + currentPeerId);
-                    rSocket.Stop();
-                    return true;
-                }
-            }
+        BtToRequestSocket rSocket = mRequestSocketList.RemoveAnyForPeer(peerId);
+        if (rSocket == null) {
+            return false;
+        }
+
+        if (mLinkPool.IsEnabled() && rSocket.IsReusable()) {
+            RelayLog.i("BtConnectorHelper", "Parking outgoing link to peer: " + rSocket.GetPeerId());
+            rSocket.Park();
+            StopLinks(mLinkPool.Park(rSocket));
+            ScheduleLinkPoolExpiry();
+            return true;
         }
 
-        return false;
+        RelayLog.i("BtConnectorHelper", "Disconnect outgoing peer: " + rSocket.GetPeerId());
+        rSocket.Stop();
+        ScheduleAdmissionCheck(0);
+        return true;
     }
 
     private void DisconnectAll(){
 
-        for (BtToRequestSocket rSocket : mRequestSocketList) {
-            if (rSocket != null) {
-                mRequestSocketList.remove(rSocket);
-                Log.i("BtConnectorHelper","Disconnect:::Stop : BtToRequestSocket :" + rSocket.getName());
-                rSocket.Stop();
-            }
+        for (BtToRequestSocket rSocket : mRequestSocketList.RemoveAll()) {
+            RelayLog.i("BtConnectorHelper","Disconnect:::Stop : BtToRequestSocket :" + rSocket.getName());
+            rSocket.Stop();
+        }
+
+        StopLinks(mLinkPool.RemoveAll());
+    }
+
+    // for links already taken out of the tables
+    private void StopLinks(List<BtToRequestSocket> links) {
+        for (BtToRequestSocket rSocket : links) {
+            RelayLog.i("BtConnectorHelper","Stop pooled link : " + rSocket.GetPeerName());
+            rSocket.Stop();
         }
+    }
 
-        mRequestSocketList.clear();
+    private void ScheduleLinkPoolExpiry() {
+        mRelayEngine.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                StopLinks(mLinkPool.RemoveExpired());
+            }
+        }, mLinkPool.GetIdleTtlMillis());
+    }
+
+    // idle pooled links give their room to links that are used, when the radio is about to run out of it
+    private void EvictPooledLinksIfNeeded() {
+        while (mRequestSocketList.Size() + mServerSocketList.Size() + mLinkPool.Size() >= mPoolPressureLinks) {
+            BtToRequestSocket rSocket = mLinkPool.EvictOldest();
+            if (rSocket == null) {
+                return;
+            }
+            rSocket.Stop();
+        }
     }
 
     //function to disconnect all incoming connections
@@ -141,26 +330,443 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
     public boolean  DisconnectIncomingConnections() {
 
         boolean ret = false;
-        for (BtToServerSocket rSocket : mServerSocketList) {
-            if (rSocket != null) {
-                Log.i("BtConnectorHelper","Disconnect:::Stop : mBtToServerSocket :" + rSocket.getName());
-                rSocket.Stop();
-                ret = true;
-            }
+        for (BtToServerSocket rSocket : mInbound.RemoveAll()) {
+            RelayLog.i("BtConnectorHelper","Disconnect:::Stop : waiting BtToServerSocket :" + rSocket.GetPeerName());
+            rSocket.Stop();
         }
 
-        mServerSocketList.clear();
+        for (BtToServerSocket rSocket : mServerSocketList.RemoveAll()) {
+            RelayLog.i("BtConnectorHelper","Disconnect:::Stop : mBtToServerSocket :" + rSocket.getName());
+            rSocket.Stop();
+            ret = true;
+        }
 
         return ret;
     }
 
+    // applies relay tuning options given as JSON, returns error string or null if all went ok
+    public String SetRelayOptions(JSONObject options) {
+        RelayBufferPool pool = mRelayEngine.GetBufferPool();
+
+        if (options.has("bufferSize")) {
+            int bufferSize = options.optInt("bufferSize", -1);
+            if (bufferSize < RelayBufferPool.MIN_BUFFER_SIZE || bufferSize > RelayBufferPool.MAX_BUFFER_SIZE) {
+                return "bufferSize must be between " + RelayBufferPool.MIN_BUFFER_SIZE + " and " + RelayBufferPool.MAX_BUFFER_SIZE;
+            }
+            pool.SetBufferSize(bufferSize);
+        }
+
+        if (options.has("adaptiveBuffers")) {
+            pool.SetAdaptive(options.optBoolean("adaptiveBuffers", true));
+        }
+
+        if (options.has("maxPooledBuffers")) {
+            int maxPooled = options.optInt("maxPooledBuffers", -1);
+            if (maxPooled < 0) {
+                return "maxPooledBuffers must not be negative";
+            }
+            pool.SetMaxPooledPerSize(maxPooled);
+        }
+
+        if (options.has("multiplex")) {
+            mMultiplex = options.optBoolean("multiplex", false);
+        }
+
+        // the per connection log lines, off by default, the trace has the events that matter
+        if (options.has("verboseLogging")) {
+            RelayLog.SetVerbose(options.optBoolean("verboseLogging", false));
+        }
+
+        if (options.has("trace")) {
+            mRelayEngine.GetTrace().SetEnabled(options.optBoolean("trace", true));
+        }
+
+        if (options.has("compress")) {
+            mCompress = options.optBoolean("compress", false);
+        }
+
+        if (options.has("compressThreshold")) {
+            int threshold = options.optInt("compressThreshold", -1);
+            if (threshold < 0) {
+                return "compressThreshold must not be negative";
+            }
+            mCompressThreshold = threshold;
+        }
+
+        if (options.has("schedulerQuantum")) {
+            int quantum = options.optInt("schedulerQuantum", -1);
+            if (quantum < RelayBufferPool.MIN_BUFFER_SIZE || quantum > RelayBufferPool.MAX_BUFFER_SIZE) {
+                return "schedulerQuantum must be between " + RelayBufferPool.MIN_BUFFER_SIZE + " and " + RelayBufferPool.MAX_BUFFER_SIZE;
+            }
+            mRelayEngine.GetScheduler().SetQuantum(quantum);
+        }
+
+        if (options.has("maxConcurrentBtWrites")) {
+            int maxConcurrent = options.optInt("maxConcurrentBtWrites", -1);
+            if (maxConcurrent < 1 || maxConcurrent > RelayEngine.DEFAULT_BT_WRITER_COUNT) {
+                return "maxConcurrentBtWrites must be between 1 and " + RelayEngine.DEFAULT_BT_WRITER_COUNT;
+            }
+            mRelayEngine.GetScheduler().SetMaxConcurrent(maxConcurrent);
+        }
+
+        if (options.has("halfCloseTimeoutMillis")) {
+            long timeoutMillis = options.optLong("halfCloseTimeoutMillis", -1);
+            if (timeoutMillis < 0) {
+                return "halfCloseTimeoutMillis must not be negative";
+            }
+            mHalfCloseTimeoutMillis = timeoutMillis;
+        }
+
+        if (options.has("helloWaitMillis")) {
+            long waitMillis = options.optLong("helloWaitMillis", -1);
+            if (waitMillis < 0) {
+                return "helloWaitMillis must not be negative";
+            }
+            mHelloWaitMillis = waitMillis;
+        }
+
+        if (options.has("keepAliveIdleMillis")) {
+            long idleMillis = options.optLong("keepAliveIdleMillis", -1);
+            if (idleMillis < 0) {
+                return "keepAliveIdleMillis must not be negative";
+            }
+            mKeepAliveIdleMillis = idleMillis;
+        }
+
+        if (options.has("poolMaxIdle")) {
+            int maxIdle = options.optInt("poolMaxIdle", -1);
+            if (maxIdle < 0) {
+                return "poolMaxIdle must not be negative";
+            }
+            StopLinks(mLinkPool.SetMaxIdle(maxIdle));
+        }
+
+        if (options.has("poolIdleTtlMillis")) {
+            long ttl = options.optLong("poolIdleTtlMillis", -1);
+            if (ttl <= 0) {
+                return "poolIdleTtlMillis must be positive";
+            }
+            mLinkPool.SetIdleTtlMillis(ttl);
+        }
+
+        if (options.has("poolPressureLinks")) {
+            int pressureLinks = options.optInt("poolPressureLinks", -1);
+            if (pressureLinks < 1) {
+                return "poolPressureLinks must be at least 1";
+            }
+            mPoolPressureLinks = pressureLinks;
+        }
+
+        if (options.has("admissionPolicy")) {
+            String policy = options.optString("admissionPolicy", "");
+            if (policy.equals("reject")) {
+                mAdmission.SetPolicy(AdmissionController.Policy.REJECT);
+            } else if (policy.equals("queue")) {
+                mAdmission.SetPolicy(AdmissionController.Policy.QUEUE);
+            } else if (policy.equals("evictLru")) {
+                mAdmission.SetPolicy(AdmissionController.Policy.EVICT_LRU);
+            } else {
+                return "admissionPolicy must be one of reject, queue or evictLru";
+            }
+        }
+
+        if (options.has("maxLinks")) {
+            int maxLinks = options.optInt("maxLinks", -1);
+            if (maxLinks < 1) {
+                return "maxLinks must be at least 1";
+            }
+            mAdmission.SetMaxLinks(maxLinks);
+        }
+
+        if (options.has("admissionMaxQueued")) {
+            int maxQueued = options.optInt("admissionMaxQueued", -1);
+            if (maxQueued < 0) {
+                return "admissionMaxQueued must not be negative";
+            }
+            mAdmission.SetMaxQueued(maxQueued);
+        }
+
+        if (options.has("admissionQueueTimeoutMillis")) {
+            long timeout = options.optLong("admissionQueueTimeoutMillis", -1);
+            if (timeout <= 0) {
+                return "admissionQueueTimeoutMillis must be positive";
+            }
+            mAdmission.SetQueueTimeoutMillis(timeout);
+        }
+
+        if (options.has("maxInbound")) {
+            int maxInbound = options.optInt("maxInbound", -1);
+            if (maxInbound < 1) {
+                return "maxInbound must be at least 1";
+            }
+            mInbound.SetMaxActive(maxInbound);
+            StartWaitingInbound();
+        }
+
+        if (options.has("maxQueuedInbound")) {
+            int maxQueued = options.optInt("maxQueuedInbound", -1);
+            if (maxQueued < 0) {
+                return "maxQueuedInbound must not be negative";
+            }
+            mInbound.SetMaxQueued(maxQueued);
+        }
+
+        if (options.has("inboundQueueTimeoutMillis")) {
+            long timeout = options.optLong("inboundQueueTimeoutMillis", -1);
+            if (timeout <= 0) {
+                return "inboundQueueTimeoutMillis must be positive";
+            }
+            mInbound.SetQueueTimeoutMillis(timeout);
+        }
+
+        if (options.has("warmLocalSockets")) {
+            int warmSockets = options.optInt("warmLocalSockets", -1);
+            if (warmSockets < 0 || warmSockets > LocalConnector.MAX_WARM_SOCKETS) {
+                return "warmLocalSockets must be between 0 and " + LocalConnector.MAX_WARM_SOCKETS;
+            }
+            mLocalConnector.SetWarmCount(warmSockets);
+        }
+
+        if (options.has("connectParallelism")) {
+            int parallelism = options.optInt("connectParallelism", -1);
+            if (parallelism < 1) {
+                return "connectParallelism must be at least 1";
+            }
+            mConnectScheduler.SetParallelism(parallelism);
+        }
+
+        if (options.has("maxQueuedConnects")) {
+            int maxQueued = options.optInt("maxQueuedConnects", -1);
+            if (maxQueued < 0) {
+                return "maxQueuedConnects must not be negative";
+            }
+            mConnectScheduler.SetMaxQueued(maxQueued);
+        }
+
+        if (options.has("eventFlushIntervalMillis")) {
+            long interval = options.optLong("eventFlushIntervalMillis", -1);
+            if (interval < 0) {
+                return "eventFlushIntervalMillis must not be negative";
+            }
+            NativeEventDispatcher.getInstance().SetFlushIntervalMillis(interval);
+        }
+
+        if (options.has("peerExpiryMillis")) {
+            long expiry = options.optLong("peerExpiryMillis", -1);
+            if (expiry <= 0) {
+                return "peerExpiryMillis must be positive";
+            }
+            mAvailabilityMonitor.SetExpiryMillis(expiry);
+        }
+
+        if (options.has("peerAvailabilityIntervalMillis")) {
+            long interval = options.optLong("peerAvailabilityIntervalMillis", -1);
+            if (interval <= 0) {
+                return "peerAvailabilityIntervalMillis must be positive";
+            }
+            mAvailabilityMonitor.SetIntervalMillis(interval);
+        }
+
+        if (options.has("coalesceBytes") || options.has("coalesceDelayMicros")) {
+            // a value not given stays as it is, for the defaults or for each connection of the peer
+            boolean hasBytes = options.has("coalesceBytes");
+            boolean hasDelay = options.has("coalesceDelayMicros");
+            int coalesceBytes = options.optInt("coalesceBytes", mDefaultCoalesceBytes);
+            long coalesceDelay = options.optLong("coalesceDelayMicros", mDefaultCoalesceDelayMicros);
+            if (coalesceBytes < 0 || coalesceBytes > RelayBufferPool.MAX_BUFFER_SIZE) {
+                return "coalesceBytes must be between 0 and " + RelayBufferPool.MAX_BUFFER_SIZE;
+            }
+            if (coalesceDelay < 0 || coalesceDelay > BtToSocketBase.MAX_COALESCE_DELAY_MICROS) {
+                return "coalesceDelayMicros must be between 0 and " + BtToSocketBase.MAX_COALESCE_DELAY_MICROS;
+            }
+
+            // with peer id the settings go to connections of that peer only, otherwise they are the new defaults
+            String peerId = options.optString(JXcoreExtension.EVENTVALUESTRING_PEERID, null);
+            if (peerId == null) {
+                mDefaultCoalesceBytes = coalesceBytes;
+                mDefaultCoalesceDelayMicros = coalesceDelay;
+            } else {
+                List<BtToSocketBase> links = GetLinksForPeer(peerId);
+                if (links.isEmpty()) {
+                    return "Connection for PeerId: " + peerId + " not  found.";
+                }
+                for (BtToSocketBase link : links) {
+                    link.SetCoalescing(hasBytes ? coalesceBytes : link.GetCoalesceBytes(),
+                            hasDelay ? coalesceDelay : link.GetCoalesceDelayMicros());
+                }
+            }
+        }
+
+        if (options.has("highWatermark") || options.has("lowWatermark")) {
+            // a value not given stays as it is, for the defaults or for each connection of the peer
+            boolean hasHigh = options.has("highWatermark");
+            boolean hasLow = options.has("lowWatermark");
+            int highWatermark = options.optInt("highWatermark", mDefaultHighWatermark);
+            int lowWatermark = options.optInt("lowWatermark", mDefaultLowWatermark);
+            if (highWatermark < 1 || highWatermark > BtToSocketBase.MAX_WATERMARK) {
+                return "highWatermark must be between 1 and " + BtToSocketBase.MAX_WATERMARK;
+            }
+
+            // with peer id the settings go to connections of that peer only, otherwise they are the new defaults
+            String peerId = options.optString(JXcoreExtension.EVENTVALUESTRING_PEERID, null);
+            if (peerId == null) {
+                if (lowWatermark < 0 || lowWatermark >= highWatermark) {
+                    return "lowWatermark must be at least 0 and below highWatermark";
+                }
+                mDefaultHighWatermark = highWatermark;
+                mDefaultLowWatermark = lowWatermark;
+            } else {
+                List<BtToSocketBase> links = GetLinksForPeer(peerId);
+                if (links.isEmpty()) {
+                    return "Connection for PeerId: " + peerId + " not  found.";
+                }
+                // all links are checked before any is changed
+                for (BtToSocketBase link : links) {
+                    int low = hasLow ? lowWatermark : link.GetLowWatermark();
+                    if (low < 0 || low >= (hasHigh ? highWatermark : link.GetHighWatermark())) {
+                        return "lowWatermark must be at least 0 and below highWatermark";
+                    }
+                }
+                for (BtToSocketBase link : links) {
+                    link.SetWatermarks(hasHigh ? highWatermark : link.GetHighWatermark(),
+                            hasLow ? lowWatermark : link.GetLowWatermark());
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // both directions
+    private List<BtToSocketBase> GetLinksForPeer(String peerId) {
+        List<BtToSocketBase> links = new ArrayList<BtToSocketBase>();
+        links.addAll(mRequestSocketList.GetForPeer(peerId));
+        links.addAll(mServerSocketList.GetForPeer(peerId));
+        return links;
+    }
+
+    // weight is the share of Bluetooth bandwidth relative to other peers, rateBytesPerSecond 0 means no limit.
+    // applies to current and later connections of the peer
+    public String SetPeerPriority(String peerId, int weight, long rateBytesPerSecond) {
+        if (peerId == null || peerId.length() == 0) {
+            return "peerIdentifier missing";
+        }
+        if (weight < 1 || weight > BandwidthScheduler.MAX_WEIGHT) {
+            return "weight must be between 1 and " + BandwidthScheduler.MAX_WEIGHT;
+        }
+        if (rateBytesPerSecond < 0) {
+            return "rateBytesPerSecond must not be negative";
+        }
+
+        mRelayEngine.GetScheduler().SetPeerPriority(peerId, weight, rateBytesPerSecond);
+        return null;
+    }
+
+    // one snapshot of every bridged connection, plus the shared buffer pool
+    public JSONObject GetConnectionStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            JSONArray outgoing = new JSONArray();
+            for (BtToRequestSocket rSocket : mRequestSocketList.GetAll()) {
+                JSONObject status = getConnectionStatus(rSocket);
+                status.put("unixDomain", rSocket.IsUnixDomain());
+                outgoing.put(status);
+            }
+
+            JSONArray incoming = new JSONArray();
+            for (BtToServerSocket rSocket : mServerSocketList.GetAll()) {
+                JSONObject status = getConnectionStatus(rSocket);
+                status.put("admissionWaitMillis", rSocket.GetAdmissionWaitMillis());
+                incoming.put(status);
+            }
+
+            stats.put("outgoing", outgoing);
+            stats.put("incoming", incoming);
+            stats.put("bufferPool", mRelayEngine.GetBufferPool().GetStats());
+            stats.put("events", NativeEventDispatcher.getInstance().GetStats());
+            stats.put("connects", mConnectScheduler.GetStats());
+            stats.put("scheduler", mRelayEngine.GetScheduler().GetStats());
+
+            long reports = mPortReportCount.get();
+            long delayMillis = mPortReportDelayNanos.get() / 1000000;
+            JSONObject readiness = new JSONObject();
+            readiness.put("portsReported", reports);
+            readiness.put("averageReportDelayMillis", reports == 0 ? 0 : delayMillis / reports);
+            readiness.put("latencySavedMillis", reports * OLD_FIXED_PORT_DELAY_MILLIS - delayMillis);
+            stats.put("readiness", readiness);
+
+            JSONObject keepAlive = new JSONObject();
+            keepAlive.put("idleMillis", mKeepAliveIdleMillis);
+            keepAlive.put("linksReused", mLinksReused.get());
+            stats.put("keepAlive", keepAlive);
+
+            JSONObject linkPool = mLinkPool.GetStats();
+            linkPool.put("pressureLinks", mPoolPressureLinks);
+            stats.put("linkPool", linkPool);
+            stats.put("admission", mAdmission.GetStats());
+            PeerSwarmSimulator tmpSimulator = mSimulator;
+            if (tmpSimulator != null) {
+                stats.put("simulation", tmpSimulator.GetStats());
+            }
+            stats.put("inbound", mInbound.GetStats(mServerSocketList.Size()));
+            stats.put("localConnect", mLocalConnector.GetStats());
+        } catch (JSONException e) {
+            RelayLog.w("BtConnectorHelper","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+
+    private JSONObject getConnectionStatus(BtToSocketBase socket) throws JSONException {
+        JSONObject status = socket.GetStats().ToJSON();
+        status.put(JXcoreExtension.EVENTVALUESTRING_PEERID, socket.GetPeerId());
+        status.put(JXcoreExtension.EVENTVALUESTRING_PEERNAME, socket.GetPeerName());
+        status.put("multiplexed", socket.IsMultiplexed());
+        status.put("compressed", socket.IsCompressed());
+        status.put("streams", socket.GetStreamCount());
+        status.put("halfClose", socket.IsHalfClose());
+        status.put("halfClosedStreams", socket.GetHalfClosedCount());
+        status.put("localConnections", socket.GetLocalConnectionCount());
+        return status;
+    }
+
+    // latency histograms of the connect phases, see ConnectTimings
+    public JSONObject GetConnectTimings() {
+        try {
+            return mRelayEngine.GetConnectTimings().ToJSON();
+        } catch (JSONException e) {
+            RelayLog.w("BtConnectorHelper","JSONException : " + e.toString());
+            return new JSONObject();
+        }
+    }
+
+    public void ResetConnectTimings() {
+        mRelayEngine.GetConnectTimings().Reset();
+    }
+
+    // the records in the trace ring, oldest first, see RelayTrace
+    public JSONArray DumpTrace() {
+        try {
+            return mRelayEngine.GetTrace().Dump();
+        } catch (JSONException e) {
+            RelayLog.w("BtConnectorHelper","JSONException : " + e.toString());
+            return new JSONArray();
+        }
+    }
+
+    public JSONObject GetBufferPoolStats() {
+        try {
+            return mRelayEngine.GetBufferPool().GetStats();
+        } catch (JSONException e) {
+            RelayLog.w("BtConnectorHelper","JSONException : " + e.toString());
+            return new JSONObject();
+        }
+    }
+
     private String GetBluetoothAddress(){
         BluetoothAdapter bluetooth = BluetoothAdapter.getDefaultAdapter();
         return bluetooth == null ? "" : bluetooth.getAddress();
     }
 
-    private ConnectStatusCallback mConnectStatusCallback = null;
-
     public interface ConnectStatusCallback{
         void ConnectionStatusUpdate(String Error, int port);
     }
@@ -172,51 +778,206 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
             throw new RuntimeException("BeginConnectPeer callback is NULL !!!!!!");
         }
 
-        //todo what should we have here for the actual value ?
-        if (mRequestSocketList.size() > 100) {
-            connectStatusCallback.ConnectionStatusUpdate("Maximum peer connections reached, please try again after disconnecting a peer. Connected to " + mRequestSocketList.size() + " peers.", -1);
-            return;
+        // a link parked by an earlier Disconnect still has its port, so it goes back to use as it is
+        if (mLinkPool.IsEnabled()) {
+            BtToRequestSocket pooled = mLinkPool.Take(toPeerId);
+            if (pooled != null) {
+                RelayLog.i("BtConnectorHelper","Taking pooled link to " + pooled.GetPeerName() + " at port : " + pooled.GetListeningPort());
+                pooled.Unpark();
+                mRequestSocketList.Add(pooled);
+                connectStatusCallback.ConnectionStatusUpdate(null, pooled.GetListeningPort());
+                return;
+            }
         }
 
-        ServiceItem selectedDevice = null;
-
-        for (ServiceItem item : lastAvailableList) {
-            if (item != null && item.peerId.contentEquals(toPeerId)) {
-                selectedDevice = item;
-                break;
+        // a kept alive link from an earlier Connect call takes new local connections, so no need for a new one
+        if (mKeepAliveIdleMillis > 0) {
+            for (BtToRequestSocket rSocket : mRequestSocketList.GetForPeer(toPeerId)) {
+                if (rSocket.IsReusable()) {
+                    RelayLog.i("BtConnectorHelper","Reusing link to " + rSocket.GetPeerName() + " at port : " + rSocket.GetListeningPort());
+                    mLinksReused.incrementAndGet();
+                    connectStatusCallback.ConnectionStatusUpdate(null, rSocket.GetListeningPort());
+                    return;
+                }
             }
         }
 
-        if (selectedDevice == null) {
+        // a connect to a peer already being connected to shares that attempt, so it needs no room of its own
+        if (!mConnectScheduler.IsPending(toPeerId) && !AdmitConnect(toPeerId, connectStatusCallback)) {
+            return;
+        }
+
+        SubmitConnect(toPeerId, connectStatusCallback);
+    }
+
+    private void SubmitConnect(String toPeerId, ConnectStatusCallback connectStatusCallback) {
+
+        if (mPeerRegistry.GetByPeerId(toPeerId) == null) {
             connectStatusCallback.ConnectionStatusUpdate("Device Address for " + toPeerId + " not found from Discovered device list.", -1);
             return;
         }
 
-        BTConnector tmpConn = mBTConnector;
-        if (tmpConn == null) {
+        if (mBTConnector == null) {
             connectStatusCallback.ConnectionStatusUpdate("Device connectivity not started, please call StartBroadcasting before attempting to connect", -1);
             return;
         }
 
-        switch(tmpConn.TryConnect(selectedDevice)){
-            case Connecting:{
-                //all is ok, lets wait callbacks, and for them lets copy the callback here
-                mConnectStatusCallback = connectStatusCallback;
+        // the scheduler calls StartConnect once there is room for another attempt
+        String error = mConnectScheduler.Submit(toPeerId, connectStatusCallback);
+        if (error != null) {
+            connectStatusCallback.ConnectionStatusUpdate(error, -1);
+        }
+    }
+
+    // what the admission controller bases its decisions on
+    private AdmissionController.Load GetAdmissionLoad() {
+        RelayBufferPool pool = mRelayEngine.GetBufferPool();
+
+        AdmissionController.Load load = new AdmissionController.Load();
+        load.activeLinks = mRequestSocketList.Size() + mServerSocketList.Size() + mLinkPool.Size() + mConnectScheduler.GetPendingCount();
+        load.outstandingBuffers = pool.GetOutstanding();
+        load.bufferSize = Math.max(pool.GetBufferSize(RelayBufferPool.Side.BLUETOOTH), pool.GetBufferSize(RelayBufferPool.Side.LOCALHOST));
+        load.perLinkBytes = 2 * mDefaultHighWatermark + 2 * load.bufferSize;
+        load.waitingForRadio = mRelayEngine.GetScheduler().GetWaitingCount();
+
+        for (BtToRequestSocket rSocket : mRequestSocketList.GetAll()) {
+            load.totalBytes += rSocket.GetStats().ToBluetooth.GetBytes() + rSocket.GetStats().ToLocal.GetBytes();
+        }
+        for (BtToServerSocket rSocket : mServerSocketList.GetAll()) {
+            load.totalBytes += rSocket.GetStats().ToBluetooth.GetBytes() + rSocket.GetStats().ToLocal.GetBytes();
+        }
+        return load;
+    }
+
+    // returns true if the connect may go ahead, otherwise it was queued or the callback got the error
+    private boolean AdmitConnect(String toPeerId, ConnectStatusCallback connectStatusCallback) {
+        // idle pooled links never keep a connect out
+        while (mAdmission.IsAtLimit(GetAdmissionLoad())) {
+            BtToRequestSocket pooled = mLinkPool.EvictOldest();
+            if (pooled == null) {
+                break;
             }
-            break;
-            case  NoSelectedDevice:{
-                // we do check this already, thus we should not get this ever.
-                connectStatusCallback.ConnectionStatusUpdate("Device Address for " + toPeerId + " not found from Discovered device list.", -1);
+            pooled.Stop();
+        }
+
+        while (true) {
+            switch (mAdmission.Decide(GetAdmissionLoad(), true)) {
+                case ADMIT:
+                    return true;
+                case QUEUE:
+                    RelayLog.i("BtConnectorHelper","Connect to " + toPeerId + " waits for admission");
+                    mAdmission.Enqueue(new AdmissionController.PendingConnect(toPeerId, connectStatusCallback));
+                    ScheduleAdmissionCheck(ADMISSION_CHECK_MILLIS);
+                    return false;
+                case EVICT:
+                    BtToRequestSocket lru = GetLeastRecentlyUsedLink();
+                    if (lru != null && mRequestSocketList.Remove(lru)) {
+                        RelayLog.i("BtConnectorHelper","Evicting least recently used link to " + lru.GetPeerName());
+                        mAdmission.RecordEvicted();
+                        lru.Stop();
+                        PostConnectionError(lru.GetPeerId());
+                        continue;
+                    }
+                    mAdmission.EvictFailed();
+                    break;
+                default:
+                    break;
             }
-            break;
-            case  AlreadyAttemptingToConnect:{
-                connectStatusCallback.ConnectionStatusUpdate("There is already one connection attempt progressing.", -1);
+
+            connectStatusCallback.ConnectionStatusUpdate("Maximum peer connections reached (" + mAdmission.GetLastRejection() + "), please try again after disconnecting a peer. Connected to " + mRequestSocketList.Size() + " peers.", -1);
+            return false;
+        }
+    }
+
+    private BtToRequestSocket GetLeastRecentlyUsedLink() {
+        BtToRequestSocket lru = null;
+        for (BtToRequestSocket rSocket : mRequestSocketList.GetAll()) {
+            if (lru == null || rSocket.GetStats().GetLastActivityNanos() - lru.GetStats().GetLastActivityNanos() < 0) {
+                lru = rSocket;
             }
-            break;
-            case  BTDeviceFetchFailed:{
-                connectStatusCallback.ConnectionStatusUpdate("Bluetooth API failed to get Bluetooth device for the address : " + selectedDevice.peerAddress, -1);
+        }
+        return lru;
+    }
+
+    // queued connects are let through on the main thread, when links go away and once a second while any are waiting
+    private synchronized void ScheduleAdmissionCheck(long delayMillis) {
+        if (mAdmissionCheckScheduled || mAdmission.GetQueuedCount() == 0) {
+            return;
+        }
+
+        if (mAdmissionHandler == null) {
+            mAdmissionHandler = new Handler(jxcore.activity.getMainLooper());
+        }
+
+        mAdmissionCheckScheduled = true;
+        mAdmissionHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BtConnectorHelper.this) {
+                    mAdmissionCheckScheduled = false;
+                }
+                RunAdmissionQueue();
             }
-            break;
+        }, delayMillis);
+    }
+
+    private void RunAdmissionQueue() {
+        for (AdmissionController.PendingConnect pending : mAdmission.RemoveTimedOut()) {
+            pending.callback.ConnectionStatusUpdate("Maximum peer connections reached, timed out waiting for a free connection slot.", -1);
+        }
+
+        AdmissionController.PendingConnect pending;
+        while ((pending = mAdmission.PollQueued()) != null) {
+            if (mAdmission.IsAtLimit(GetAdmissionLoad())) {
+                mAdmission.Requeue(pending);
+                break;
+            }
+            SubmitConnect(pending.peerId, pending.callback);
+        }
+
+        ScheduleAdmissionCheck(ADMISSION_CHECK_MILLIS);
+    }
+
+    private void PostConnectionError(String peerId) {
+        JSONObject returnJsonObj = new JSONObject();
+        try {
+            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERID, peerId);
+        } catch (JSONException e) {
+            RelayLog.w("BtConnectorHelper","JSONException : " + e.toString());
+        }
+
+        NativeEventDispatcher.getInstance().Post(JXcoreExtension.EVENTSTRING_CONNECTIONERROR, returnJsonObj);
+    }
+
+    // the peer may have expired, or we may have been stopped, while the request was queued
+    private ConnectScheduler.StartResult StartConnect(String toPeerId) {
+
+        PeerRegistry.Entry selectedEntry = mPeerRegistry.GetByPeerId(toPeerId);
+        if (selectedEntry == null) {
+            return ConnectScheduler.StartResult.Failed("Device Address for " + toPeerId + " not found from Discovered device list.");
+        }
+
+        ServiceItem selectedDevice = selectedEntry.item;
+
+        PeerConnector tmpConn = mBTConnector;
+        if (tmpConn == null) {
+            return ConnectScheduler.StartResult.Failed("Device connectivity not started, please call StartBroadcasting before attempting to connect");
+        }
+
+        EvictPooledLinksIfNeeded();
+
+        switch(tmpConn.TryConnect(selectedDevice)){
+            case Connecting:
+                //all is ok, lets wait callbacks
+                return ConnectScheduler.StartResult.STARTED;
+            case  NoSelectedDevice:
+                // we do check this already, thus we should not get this ever.
+                return ConnectScheduler.StartResult.Failed("Device Address for " + toPeerId + " not found from Discovered device list.");
+            case  AlreadyAttemptingToConnect:
+                // stays queued until the attempt in progress is done
+                return ConnectScheduler.StartResult.BUSY;
+            case  BTDeviceFetchFailed:
+                return ConnectScheduler.StartResult.Failed("Bluetooth API failed to get Bluetooth device for the address : " + selectedDevice.peerAddress);
             default:
                 throw new RuntimeException("Invalid value returned for BTConnector.TryConnectReturnValues with TryConnect");
         }
@@ -230,137 +991,207 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
             return;
         }
 
+        String btAddress = peerAddress;
+        if (bluetoothSocket.getRemoteDevice() != null) {
+            btAddress = bluetoothSocket.getRemoteDevice().getAddress();
+        }
+        Connected(new BluetoothLinkTransport(bluetoothSocket), btAddress, incoming, peerId, peerName, peerAddress);
+    }
+
+    // a link made by the connector, or by PeerSwarmSimulator. remoteAddress is where the link really comes from
+    void Connected(LinkTransport transport, String remoteAddress, boolean incoming, String peerId, String peerName, String peerAddress) {
+
         // this is here, so if we have not found the incoming peer via Discovery, we'll get it
         // added to the discovery list, and we can connect back to it.
-        AddPeerIfNotDiscovered(bluetoothSocket, peerId, peerName, peerAddress);
-        Log.i("BtConnectorHelper","Starting the connected thread incoming : " + incoming + ", " + peerName);
+        AddPeerIfNotDiscovered(remoteAddress, peerId, peerName);
+        mRelayEngine.GetTrace().Record(RelayTrace.Event.CONNECT, peerId, 0, incoming ? 1 : 0, null);
+        RelayLog.i("BtConnectorHelper","Starting the connected thread incoming : " + incoming + ", " + peerName);
 
         if (incoming) {
+            EvictPooledLinksIfNeeded();
+
             BtToServerSocket tmpBtToServerSocket = null;
             try {
-                tmpBtToServerSocket = new BtToServerSocket(bluetoothSocket, new BtSocketDisconnectedCallBack(){
+                tmpBtToServerSocket = new BtToServerSocket(transport, new BtSocketDisconnectedCallBack(){
                     //Called when disconnect event happens, so we can stop & clean everything now.
                     @Override
                     public void Disconnected(Thread who, String Error) {
-                        Log.i("BtConnectorHelper","BT Disconnected with error : " + Error);
-
-                        for (BtToServerSocket rSocket : mServerSocketList) {
-                            if (rSocket != null && (rSocket.getId() == who.getId())) {
-                                Log.i("BtConnectorHelper","Disconnect:::Stop : mBtToServerSocket :" + rSocket.GetPeerName());
-                                rSocket.Stop();
-                                mServerSocketList.remove(rSocket);
-                                break;
-                            }
+                        RelayLog.w("BtConnectorHelper","BT Disconnected with error : " + Error);
+
+                        BtToServerSocket rSocket = mServerSocketList.Remove(who.getId());
+                        if (rSocket != null) {
+                            RelayLog.i("BtConnectorHelper","Disconnect:::Stop : mBtToServerSocket :" + rSocket.GetPeerName());
+                            rSocket.Stop();
                         }
+                        StartWaitingInbound();
+                        ScheduleAdmissionCheck(0);
                     }
-                });
+                }, mRelayEngine);
             }catch (IOException e){
-                Log.i("BtConnectorHelper","Creating BtToServerSocket failed : " + e.toString());
+                RelayLog.w("BtConnectorHelper","Creating BtToServerSocket failed : " + e.toString());
                 return;
             }
             tmpBtToServerSocket.setDefaultUncaughtExceptionHandler(mThreadUncaughtExceptionHandler);
 
-            mServerSocketList.add(tmpBtToServerSocket);
-
             tmpBtToServerSocket.SetIdAddressAndName(peerId, peerName, peerAddress);
-            tmpBtToServerSocket.setPort(this.mServerPort);
-            tmpBtToServerSocket.start();
 
-            int port = tmpBtToServerSocket.GetLocalHostPort();
-            Log.i("BtConnectorHelper","Server socket is using : " + port + ", and is now connected.");
+            tmpBtToServerSocket.setLocalConnector(mLocalConnector);
+            tmpBtToServerSocket.SetCoalescing(mDefaultCoalesceBytes, mDefaultCoalesceDelayMicros);
+            tmpBtToServerSocket.SetWatermarks(mDefaultHighWatermark, mDefaultLowWatermark);
+            tmpBtToServerSocket.SetCompressThreshold(mCompressThreshold);
+            tmpBtToServerSocket.SetHalfCloseTimeout(mHalfCloseTimeoutMillis);
+            tmpBtToServerSocket.SetHelloWait(mHelloWaitMillis);
+
+            synchronized (mInbound) {
+                if (mInbound.TryAdmit(mServerSocketList.Size())) {
+                    StartInbound(tmpBtToServerSocket);
+                    return;
+                }
 
+                // peers we have an outgoing link with get their bridge first
+                boolean priority = mRequestSocketList.HasPeer(peerId) || mLinkPool.HasPeer(peerId);
+                RelayLog.i("BtConnectorHelper","Incoming link from " + peerName + " waits for a free bridge, priority : " + priority);
+                for (BtToServerSocket rejected : mInbound.Enqueue(tmpBtToServerSocket, priority)) {
+                    rejected.Stop();
+                }
+            }
+
+            mRelayEngine.Schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (BtToServerSocket timedOut : mInbound.RemoveTimedOut()) {
+                        timedOut.Stop();
+                    }
+                }
+            }, mInbound.GetQueueTimeoutMillis());
             return;
         }
 
-        //not incoming, thus its outgoing
+        //not incoming, thus its outgoing, and the attempt for this peer is now done
+        mAdmission.RecordConnectResult(true);
+        final ConnectScheduler.ConnectRequest connectRequest = mConnectScheduler.TakeInFlight(peerId);
+        if (connectRequest == null) {
+            RelayLog.i("BtConnectorHelper","No pending Connect call for outgoing connection to : " + peerName);
+        } else {
+            RecordConnectTimings(connectRequest, ConnectTimings.Phase.CONNECT);
+        }
+
         BtToRequestSocket tmpRequestSocket = null;
         try {
-            tmpRequestSocket = new BtToRequestSocket(bluetoothSocket, new BtSocketDisconnectedCallBack() {
+            tmpRequestSocket = new BtToRequestSocket(transport, new BtSocketDisconnectedCallBack() {
                 //Called when disconnect event happens, so we can stop & clean everything now.
                 @Override
                 public void Disconnected(Thread who, String Error) {
 
-                    for (BtToRequestSocket rSocket : mRequestSocketList) {
-                        if (rSocket != null && (rSocket.getId() == who.getId())) {
-                            Log.i("BtConnectorHelper", "Disconnect outgoing peer: " + rSocket.GetPeerName());
-                            mRequestSocketList.remove(rSocket);
-                            // fire the event in here !!!
-                            rSocket.Stop();
-                            JSONObject returnJsonObj = new JSONObject();
-                            try {
-                                returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERID, rSocket.GetPeerId());
-                            } catch (JSONException e) {
-                                Log.i("BtConnectorHelper","JSONException : " + e.toString());
-                            }
+                    // a parked link going down is nothing the app needs to hear about
+                    if (mLinkPool.Remove(who.getId())) {
+                        RelayLog.i("BtConnectorHelper", "Pooled link went down: " + Error);
+                        ((BtToRequestSocket) who).Stop();
+                        return;
+                    }
 
-                            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_CONNECTIONERROR, returnJsonObj.toString());
-                            break;
-                        }
+                    BtToRequestSocket rSocket = mRequestSocketList.Remove(who.getId());
+                    if (rSocket != null) {
+                        RelayLog.i("BtConnectorHelper", "Disconnect outgoing peer: " + rSocket.GetPeerName());
+                        // fire the event in here !!!
+                        rSocket.Stop();
+                        PostConnectionError(rSocket.GetPeerId());
                     }
+                    ScheduleAdmissionCheck(0);
                 }
             }, new BtToRequestSocket.ReadyForIncoming() {
-                // there is a good chance on race condition where the node.js gets to do their client socket
-                // before we got into the accept line executed, thus this callback takes care that we are ready before node.js is
+                // called as soon as the local server socket is bound, which is enough for node.js to connect,
+                // since a bound socket queues incoming connections until we get into the accept line
                 @Override
                 public void listeningAndAcceptingNow(int port) {
                     final int portTmp = port;
-                    Log.i("BtConnectorHelper","Request socket is using : " + portTmp);
-                    new Handler(jxcore.activity.getMainLooper()).postDelayed(new Runnable() {
+                    final long readyNanos = System.nanoTime();
+                    RelayLog.i("BtConnectorHelper","Request socket is using : " + portTmp);
+                    new Handler(jxcore.activity.getMainLooper()).post(new Runnable() {
                         @Override
                         public void run() {
-                            ConnectStatusCallback tmpCallBack = mConnectStatusCallback;
-                            if (tmpCallBack != null) {
-                                Log.i("BtConnectorHelper","Calling ConnectionStatusUpdate with port :" + portTmp);
-                                tmpCallBack.ConnectionStatusUpdate(null, portTmp);
+                            if (connectRequest != null) {
+                                RelayLog.i("BtConnectorHelper","Calling ConnectionStatusUpdate with port :" + portTmp);
+                                mPortReportCount.incrementAndGet();
+                                mPortReportDelayNanos.addAndGet(System.nanoTime() - readyNanos);
+                                ConnectTimings timings = mRelayEngine.GetConnectTimings();
+                                timings.RecordSince(false, ConnectTimings.Phase.REPORT, readyNanos);
+                                timings.RecordSince(false, ConnectTimings.Phase.TOTAL, connectRequest.GetSubmittedNanos());
+                                connectRequest.Report(null, portTmp);
                             }
                         }
-                    }, 300);
+                    });
                 }
-            });
+            }, mRelayEngine);
         }catch (IOException e) {
-            Log.i("BtConnectorHelper","Creating BtToRequestSocket failed : " + e.toString());
-            ConnectStatusCallback tmpCallBack = mConnectStatusCallback;
-            if (tmpCallBack != null) {
-                tmpCallBack.ConnectionStatusUpdate("Creating BtToRequestSocket failed : " + e.toString(), -1);
+            RelayLog.w("BtConnectorHelper","Creating BtToRequestSocket failed : " + e.toString());
+            if (connectRequest != null) {
+                connectRequest.Report("Creating BtToRequestSocket failed : " + e.toString(), -1);
             }
             return;
         }
 
-        mRequestSocketList.add(tmpRequestSocket);
         tmpRequestSocket.SetIdAddressAndName(peerId, peerName, peerAddress);
+        mRequestSocketList.Add(tmpRequestSocket);
 
         tmpRequestSocket.setDefaultUncaughtExceptionHandler(mThreadUncaughtExceptionHandler);
-        tmpRequestSocket.SetIdAddressAndName(peerId, peerName, peerAddress);
+        tmpRequestSocket.SetCoalescing(mDefaultCoalesceBytes, mDefaultCoalesceDelayMicros);
+        tmpRequestSocket.SetWatermarks(mDefaultHighWatermark, mDefaultLowWatermark);
+        tmpRequestSocket.SetMultiplex(mMultiplex);
+        tmpRequestSocket.SetCompress(mCompress);
+        tmpRequestSocket.SetCompressThreshold(mCompressThreshold);
+        tmpRequestSocket.SetHalfCloseTimeout(mHalfCloseTimeoutMillis);
+        // a link can only be pooled if it outlives its local connections, which only framed links do
+        long keepAlive = mKeepAliveIdleMillis;
+        if (mLinkPool.IsEnabled() && (mMultiplex || mCompress)) {
+            keepAlive = Math.max(keepAlive, mLinkPool.GetIdleTtlMillis());
+        }
+        tmpRequestSocket.SetKeepAlive(keepAlive);
+        tmpRequestSocket.SetUnixDomain(mUnixDomain ? mUnixDomainTransport : null);
         tmpRequestSocket.start();
     }
 
-    // if the peer that just made incoming connection has not been discovered yet, we'll ad it here
-    // thus allowing us to make connection back to it
-    private void AddPeerIfNotDiscovered(BluetoothSocket bluetoothSocket, String peerId,String peerName,String peerAddress) {
+    // the time the connector took for the attempt, and how long it waited in the queue before that
+    private void RecordConnectTimings(ConnectScheduler.ConnectRequest connectRequest, ConnectTimings.Phase outcome) {
+        long startedNanos = connectRequest.GetStartedNanos();
+        if (startedNanos == 0) {
+            return;
+        }
 
-        boolean isDiscovered = false;
+        ConnectTimings timings = mRelayEngine.GetConnectTimings();
+        timings.Record(false, ConnectTimings.Phase.QUEUED, startedNanos - connectRequest.GetSubmittedNanos());
+        timings.RecordSince(false, outcome, startedNanos);
+    }
 
-        for (ServiceItem item : lastAvailableList) {
-            if (item != null && item.peerId.contentEquals(peerId)) {
-                isDiscovered = true;
-                break;
+    private void StartInbound(BtToServerSocket socket) {
+        mRelayEngine.GetConnectTimings().RecordSince(true, ConnectTimings.Phase.ADMISSION, socket.GetStats().GetCreatedNanos());
+        mServerSocketList.Add(socket);
+        socket.start();
+
+        int port = socket.GetLocalHostPort();
+        RelayLog.i("BtConnectorHelper","Server socket is using : " + port + ", and is now connected.");
+    }
+
+    // an incoming bridge was released, or the limit was raised
+    private void StartWaitingInbound() {
+        synchronized (mInbound) {
+            BtToServerSocket next;
+            while ((next = mInbound.PollAdmitted(mServerSocketList.Size())) != null) {
+                RelayLog.i("BtConnectorHelper","Starting waiting incoming link from " + next.GetPeerName() + " after " + next.GetAdmissionWaitMillis() + " ms");
+                StartInbound(next);
             }
         }
+    }
 
-        if (!isDiscovered) {
-            String BtAddress = peerAddress;
-            if (bluetoothSocket != null) {
-                if (bluetoothSocket.getRemoteDevice() != null) {
-                    BtAddress = bluetoothSocket.getRemoteDevice().getAddress();
-                }
-            }
+    // if the peer that just made incoming connection has not been discovered yet, we'll ad it here
+    // thus allowing us to make connection back to it
+    private void AddPeerIfNotDiscovered(String BtAddress, String peerId,String peerName) {
 
+        if (mPeerRegistry.GetByPeerId(peerId) == null) {
             ServiceItem tmpSrv = new ServiceItem(peerId, peerName, BtAddress, "", "", "");
-            lastAvailableList.add(tmpSrv);
-
-            JSONArray jsonArray = new JSONArray();
-            jsonArray.put(getAvailabilityStatus(tmpSrv, true));
-            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, jsonArray.toString());
+            if (mPeerRegistry.PeerSeen(tmpSrv)) {
+                mAvailabilityMonitor.PeerAvailable(tmpSrv);
+            }
         }
     }
 
@@ -368,9 +1199,12 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
     //this is always called in context of thread that created instance of the library
     @Override
     public void ConnectionFailed(String peerId, String peerName, String peerAddress) {
-        ConnectStatusCallback tmpStatBack = mConnectStatusCallback;
-        if(tmpStatBack != null) {
-            tmpStatBack.ConnectionStatusUpdate("Connection to " + peerId + " failed", -1);
+        mRelayEngine.GetTrace().Record(RelayTrace.Event.CONNECT_FAILED, peerId, 0, 0, null);
+        mAdmission.RecordConnectResult(false);
+        ConnectScheduler.ConnectRequest connectRequest = mConnectScheduler.TakeInFlight(peerId);
+        if(connectRequest != null) {
+            RecordConnectTimings(connectRequest, ConnectTimings.Phase.CONNECT_FAILED);
+            connectRequest.Report("Connection to " + peerId + " failed", -1);
         }
     }
 
@@ -401,90 +1235,32 @@ public class BtConnectorHelper implements BTConnector.Callback, BTConnector.Conn
 
     // this is called with a full list of peer-services we see, its takes time to get,
     // since there is time spend between each peer we discover
-    // anyway, this list can be used for determining whether the peer we saw earlier has now disappeared
+    // anyway, this list is used for keeping the last seen times of the peers up to date,
+    // peers not seen for a while are then expired by PeerAvailabilityMonitor.
     // will be called null or empty list, if no services are found during some time period.
 
     //this is always called in context of thread that created instance of the library
     @Override
     public ServiceItem CurrentPeersList(final List<ServiceItem> serviceItems) {
 
-   /*     Boolean wasPreviouslyAvailable = false;
-
-        JSONArray jsonArray = new JSONArray();
-
         if (serviceItems != null) {
-            for (ServiceItem item: serviceItems) {
-                if(item != null) {
-                    wasPreviouslyAvailable = false;
-
-                    for (ServiceItem lastItem : lastAvailableList) {
-                        if (lastItem != null && item.deviceAddress.equalsIgnoreCase(lastItem.deviceAddress)) {
-                            wasPreviouslyAvailable = true;
-                            lastAvailableList.remove(lastItem);
-                        }
-                    }
-
-                    if (!wasPreviouslyAvailable) {
-                        jsonArray.put(getAvailabilityStatus(item, true));
-                    }
+            for (ServiceItem item : serviceItems) {
+                if (item != null && mPeerRegistry.PeerSeen(item)) {
+                    mAvailabilityMonitor.PeerAvailable(item);
                 }
             }
         }
-
-        for (ServiceItem lastItem2 : lastAvailableList) {
-            jsonArray.put(getAvailabilityStatus(lastItem2, false));
-            lastAvailableList.remove(lastItem2);
-        }
-
-        if (serviceItems != null) {
-            for (ServiceItem item: serviceItems) {
-                if(item != null) {
-                    lastAvailableList.add(item);
-                }
-            }
-        }
-
-        // lets not sent any empty arrays up.
-        if (jsonArray.toString().length() > 5) {
-            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, jsonArray.toString());
-        }*/
         return null;
     }
 
 
-    // this is called when we see a peer, so we can inform the app of its availability right when we see it
+    // this is called when we see a peer, the availability gets reported to the app with the next batch
     //this is always called in context of thread that created instance of the library
     @Override
     public void PeerDiscovered(ServiceItem serviceItem) {
-        boolean wasPrevouslyAvailable = false;
-
-        for (ServiceItem lastItem : lastAvailableList) {
-            if (lastItem != null && serviceItem.deviceAddress.equalsIgnoreCase(lastItem.deviceAddress)) {
-                wasPrevouslyAvailable = true;
-            }
-        }
-
-        if (!wasPrevouslyAvailable) {
-
-            lastAvailableList.add(serviceItem);
-
-            JSONArray jsonArray = new JSONArray();
-            jsonArray.put(getAvailabilityStatus(serviceItem, true));
-            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, jsonArray.toString());
-        }
-    }
-
-
-    private JSONObject getAvailabilityStatus(ServiceItem item, boolean available) {
-
-        JSONObject returnJsonObj = new JSONObject();
-        try {
-            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERID, item.peerId);
-            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERNAME, item.peerName);
-            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERAVAILABLE, available);
-        } catch (JSONException e) {
-            Log.i("BtConnectorHelper","JSONException : " + e.toString());
+        // refreshes the last seen time for peers we already know
+        if (mPeerRegistry.PeerSeen(serviceItem)) {
+            mAvailabilityMonitor.PeerAvailable(serviceItem);
         }
-        return returnJsonObj;
     }
 }
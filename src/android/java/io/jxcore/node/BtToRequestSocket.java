@@ -1,13 +1,15 @@
 package io.jxcore.node;
 
-import android.bluetooth.BluetoothSocket;
-import android.util.Log;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by juksilve on 4.6.2015.
@@ -19,69 +21,414 @@ public class BtToRequestSocket extends BtToSocketBase{
         void listeningAndAcceptingNow(int port);
     }
     private final ReadyForIncoming readyCallback;
-    private ServerSocket srvSocket = null;
+    private ServerSocketChannel srvSocket = null;
+
+    // released once the server socket is bound, or when binding failed
+    private final CountDownLatch mListeningLatch = new CountDownLatch(1);
+    private volatile int mListeningPort = 0;
+    private volatile long mListeningNanos = 0;
+
+    private volatile boolean mMultiplex = false;
+    private volatile boolean mCompress = false;
+    // only touched by the relay selector thread, or by the accept thread of a Unix-domain link
+    private int mNextStreamId = 1;
+
+    // node.js connects to an abstract Unix-domain socket instead of a TCP port, see LocalConnector.UnixLinkName
+    private volatile UnixDomainTransport mUnixDomain = null;
+    private volatile UnixDomainTransport.Listener mLocalServer = null;
+    private static final AtomicInteger mNextUnixLinkId = new AtomicInteger(1);
 
-    public BtToRequestSocket(BluetoothSocket socket, BtSocketDisconnectedCallBack handler,ReadyForIncoming callback)  throws IOException {
-        super(socket,handler);
-        Log.i("BtToRequestSocket", "Creating BtConnectedRequestSocket");
+    // set while the link waits in the LinkPool, it takes no local connections then
+    private volatile boolean mParked = false;
+
+    // Bluetooth reads can not time out, so a peer that never answers our hello gets the link ended after this
+    public static final long HELLO_REPLY_TIMEOUT_MILLIS = 10 * 1000;
+
+    public BtToRequestSocket(LinkTransport socket, BtSocketDisconnectedCallBack handler,ReadyForIncoming callback, RelayEngine relayEngine)  throws IOException {
+        super(socket,handler,relayEngine);
+        RelayLog.i("BtToRequestSocket", "Creating BtConnectedRequestSocket");
         readyCallback = callback;
     }
 
     public void run() {
 
+        if (mUnixDomain != null) {
+            RunUnixDomain();
+            return;
+        }
+
         try {
-            srvSocket = new ServerSocket(0);
-            Log.i("BtToRequestSocket", "mHTTPPort  set to : " + srvSocket.getLocalPort());
+            srvSocket = ServerSocketChannel.open();
+            srvSocket.socket().bind(new InetSocketAddress(0));
+            RelayLog.i("BtToRequestSocket", "mHTTPPort  set to : " + GetLocalHostPort());
         } catch (IOException e) {
-            Log.i("BtToRequestSocket", "Creating local sockets failed: " + e.toString());
+            RelayLog.w("BtToRequestSocket", "Creating local sockets failed: " + e.toString());
             srvSocket = null;
+            mListeningLatch.countDown();
             mHandler.Disconnected(that, "creating socket failed");
             return;
         }
 
-        InputStream tmpInputStream = null;
-        OutputStream tmpOutputStream = null;
+        // a bound socket is already listening, so any connection node.js makes from now on
+        // waits in the backlog until we get to accept it, and the port can be reported right away
+        mListeningPort = GetLocalHostPort();
+        Listening();
 
-        try {
-            if (readyCallback != null) {
-                readyCallback.listeningAndAcceptingNow(srvSocket.getLocalPort());
+        if (readyCallback != null) {
+            readyCallback.listeningAndAcceptingNow(mListeningPort);
+        }
+
+        ServerSocketChannel tmpSrvSocket = srvSocket;
+        if (tmpSrvSocket == null) {
+            // stopped already
+            return;
+        }
+
+        int wantedFlags = GetWantedFlags();
+        if (wantedFlags != 0) {
+            int acceptedFlags = ExchangeHello(wantedFlags);
+            if (acceptedFlags < 0) {
+                return;
             }
-            Log.i("BtToRequestSocket", "Now accepting connections");
-            Socket tmpSocket = srvSocket.accept();
-            CloseSocketAndStreams();
-            localHostSocket = tmpSocket;
 
-            Log.i("BtToRequestSocket", "incoming data from: " + GetLocalHostAddressAsString() + ", port: " + GetLocalHostPort());
-            tmpInputStream = localHostSocket.getInputStream();
-            tmpOutputStream = localHostSocket.getOutputStream();
+            // any accepted framing flag means the link is framed from now on
+            acceptedFlags &= wantedFlags;
+            if (RelayProtocol.IsFramed(acceptedFlags)) {
+                if ((acceptedFlags & RelayProtocol.FLAG_COMPRESS) != 0) {
+                    EnableCompression();
+                }
+                if ((acceptedFlags & RelayProtocol.FLAG_HALF_CLOSE) != 0) {
+                    EnableHalfClose();
+                }
+
+                try {
+                    tmpSrvSocket.configureBlocking(false);
+                } catch (IOException e) {
+                    RelayLog.w("BtToRequestSocket", "Configuring server socket failed: " + e.toString());
+                    mHandler.Disconnected(that, "Creating local streams failed");
+                    return;
+                }
+
+                // every connection node.js makes to our port now becomes its own stream on this link
+                RelayLog.i("BtToRequestSocket", "Now accepting multiplexed connections, compressed: " + IsCompressed());
+                StartFramedRelay(tmpSrvSocket);
+                RelayLog.i("BtToRequestSocket", "rin ended ---------------------------;");
+                return;
+            }
+            RelayLog.i("BtToRequestSocket", "Remote peer does not support framing, using plain relay");
+        }
+
+        // a plain link carries exactly one local connection, keep-alive needs the framed link
+        SocketChannel tmpChannel;
+        try {
+            RelayLog.i("BtToRequestSocket", "Now accepting connections");
+            tmpChannel = tmpSrvSocket.accept();
+            RelayLog.i("BtToRequestSocket", "incoming data from: " + tmpChannel.socket().getInetAddress() + ", port: " + GetLocalHostPort());
 
         } catch (IOException e) {
-            Log.i("BtToRequestSocket", "Creating local streams failed: " + e.toString());
+            RelayLog.w("BtToRequestSocket", "Creating local streams failed: " + e.toString());
             mHandler.Disconnected(that, "Creating local streams failed");
             return;
         }
 
-        Log.i("BtToRequestSocket", "Set local streams");
-        LocalInputStream = tmpInputStream;
-        LocalOutputStream = tmpOutputStream;
+        RelayLog.i("BtToRequestSocket", "Set local channel");
+        StartRelay(tmpChannel, null);
+
+        RelayLog.i("BtToRequestSocket", "rin ended ---------------------------;");
+    }
+
+    private void Listening() {
+        mListeningNanos = System.nanoTime();
+        mRelayEngine.GetConnectTimings().Record(false, ConnectTimings.Phase.BIND, mListeningNanos - mStats.GetCreatedNanos());
+        mListeningLatch.countDown();
+    }
+
+    // node.js made its first connection after getting the port
+    @Override
+    protected void OnFirstStream(long startNanos) {
+        long listeningNanos = mListeningNanos;
+        if (listeningNanos != 0) {
+            mRelayEngine.GetConnectTimings().Record(false, ConnectTimings.Phase.ACCEPT, startNanos - listeningNanos);
+        }
+    }
+
+    private int GetWantedFlags() {
+        int flags = (mMultiplex ? RelayProtocol.FLAG_MULTIPLEX : 0) | (mCompress ? RelayProtocol.FLAG_COMPRESS : 0);
+        if (flags != 0 && GetHalfCloseTimeoutMillis() > 0) {
+            flags |= RelayProtocol.FLAG_HALF_CLOSE;
+        }
+        return flags;
+    }
+
+    // returns the flags the remote peer accepted, or -1 if the link went down
+    private int ExchangeHello(int wantedFlags) {
+        // set by whichever comes first, the reply or the timeout
+        final AtomicBoolean answered = new AtomicBoolean(false);
+        mRelayEngine.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (answered.compareAndSet(false, true)) {
+                    RelayError("no hello reply within " + HELLO_REPLY_TIMEOUT_MILLIS + " ms");
+                }
+            }
+        }, HELLO_REPLY_TIMEOUT_MILLIS);
+
+        try {
+            RelayProtocol.WriteHello(mmOutStream, wantedFlags);
+            int acceptedFlags = RelayProtocol.ReadHelloReply(mmInStream);
+            // a reply after the timeout is too late, the link is going down already
+            return answered.compareAndSet(false, true) ? acceptedFlags : -1;
+        } catch (IOException e) {
+            if (answered.compareAndSet(false, true)) {
+                RelayLog.w("BtToRequestSocket", "Relay hello failed: " + e.toString());
+                mHandler.Disconnected(that, "Relay hello failed");
+            }
+            return -1;
+        }
+    }
+
+    // same as run() for the Unix-domain transport. Its listener can not be selected on, so a framed link
+    // accepts its connections on a thread of their own, and this thread reads Bluetooth
+    private void RunUnixDomain() {
+        int linkId = mNextUnixLinkId.getAndIncrement();
+        try {
+            mLocalServer = mUnixDomain.Listen(LocalConnector.UnixLinkName(linkId));
+            RelayLog.i("BtToRequestSocket", "Listening on Unix-domain socket : " + LocalConnector.UnixLinkName(linkId));
+        } catch (IOException e) {
+            RelayLog.w("BtToRequestSocket", "Creating local sockets failed: " + e.toString());
+            mListeningLatch.countDown();
+            mHandler.Disconnected(that, "creating socket failed");
+            return;
+        }
+
+        // node.js gets the link id in place of the port
+        mListeningPort = linkId;
+        Listening();
+
+        if (readyCallback != null) {
+            readyCallback.listeningAndAcceptingNow(mListeningPort);
+        }
+
+        int wantedFlags = GetWantedFlags();
+        boolean framed = false;
+        if (wantedFlags != 0) {
+            int acceptedFlags = ExchangeHello(wantedFlags);
+            if (acceptedFlags < 0) {
+                return;
+            }
+
+            acceptedFlags &= wantedFlags;
+            framed = RelayProtocol.IsFramed(acceptedFlags);
+            if ((acceptedFlags & RelayProtocol.FLAG_COMPRESS) != 0) {
+                EnableCompression();
+            }
+            if (framed && (acceptedFlags & RelayProtocol.FLAG_HALF_CLOSE) != 0) {
+                EnableHalfClose();
+            }
+        }
+
+        if (!framed) {
+            // a plain link carries exactly one local connection, accepted on this thread as for TCP
+            UnixDomainTransport.Listener tmpServer = mLocalServer;
+            LinkTransport socket;
+            try {
+                if (tmpServer == null) {
+                    throw new IOException("stopped");
+                }
+                RelayLog.i("BtToRequestSocket", "Now accepting Unix-domain connections");
+                socket = tmpServer.Accept();
+            } catch (IOException e) {
+                RelayLog.w("BtToRequestSocket", "Creating local streams failed: " + e.toString());
+                mHandler.Disconnected(that, "Creating local streams failed");
+                return;
+            }
+
+            StartRelay(socket, null);
+            RelayLog.i("BtToRequestSocket", "rin ended ---------------------------;");
+            return;
+        }
+
+        AcceptOnOwnThread();
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AcceptUnixDomain();
+            }
+        }, "BtToRequestSocket-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        RelayLog.i("BtToRequestSocket", "Now accepting multiplexed Unix-domain connections");
+        StartFramedRelay(null);
+        RelayLog.i("BtToRequestSocket", "rin ended ---------------------------;");
+    }
+
+    // framed links only, every connection becomes a stream of its own
+    private void AcceptUnixDomain() {
+        while (true) {
+            UnixDomainTransport.Listener tmpServer = mLocalServer;
+            if (tmpServer == null) {
+                return;
+            }
+
+            LinkTransport socket;
+            try {
+                socket = tmpServer.Accept();
+            } catch (IOException e) {
+                RelayLog.i("BtToRequestSocket", "Accept failed: " + e.toString());
+                return;
+            }
+
+            if (mLocalServer == null) {
+                // the connection that woke us up from Stop(), if the listener needs one
+                CloseQuietly(socket);
+                return;
+            }
+
+            if (mParked) {
+                // the app has disconnected from this link
+                CloseQuietly(socket);
+                continue;
+            }
+
+            int streamId = mNextStreamId++;
+            if (RelayLog.IsVerbose()) {
+                RelayLog.i("BtToRequestSocket", "New local connection, stream " + streamId);
+            }
+            // OPEN must go out before any data of the stream, and the stream starts reading right away
+            SendFrame(RelayProtocol.FRAME_OPEN, streamId, 0);
+            AddStream(streamId, socket);
+        }
+    }
+
+    private static void CloseQuietly(LinkTransport socket) {
+        try {
+            socket.Close();
+        } catch (IOException e) {
+            RelayLog.i("BtToRequestSocket", "Close error : " + e.toString());
+        }
+    }
+
+    //this is always called in context of the relay selector thread
+    @Override
+    public void OnLocalAcceptable(SelectableChannel channel) {
+        if (mParked) {
+            // Unpark turns accepting back on
+            mRelayEngine.DisableInterest(channel, SelectionKey.OP_ACCEPT);
+            return;
+        }
+
+        while (true) {
+            SocketChannel tmpChannel;
+            try {
+                tmpChannel = ((ServerSocketChannel) channel).accept();
+            } catch (IOException e) {
+                RelayLog.i("BtToRequestSocket", "Accept failed: " + e.toString());
+                return;
+            }
+
+            if (tmpChannel == null) {
+                return;
+            }
+
+            int streamId = mNextStreamId++;
+            if (RelayLog.IsVerbose()) {
+                RelayLog.i("BtToRequestSocket", "New local connection, stream " + streamId);
+            }
+            // the stream starts reading only after its registration is done on this thread,
+            // so the OPEN frame always goes out before any of its data
+            if (AddStream(streamId, tmpChannel) != null) {
+                SendFrame(RelayProtocol.FRAME_OPEN, streamId, 0);
+            }
+        }
+    }
+
+    // the app disconnected from the link and it goes into the LinkPool: its local connections are closed,
+    // which also closes their remote ends, and no new ones are taken until Unpark
+    public void Park() {
+        mParked = true;
+        ServerSocketChannel tmpSrvSocket = srvSocket;
+        if (tmpSrvSocket != null && IsMultiplexed()) {
+            mRelayEngine.DisableInterest(tmpSrvSocket, SelectionKey.OP_ACCEPT);
+        }
+        CloseLocalConnections("disconnected by the app");
+    }
+
+    // the link was taken out of the LinkPool for a new Connect
+    public void Unpark() {
+        ServerSocketChannel tmpSrvSocket = srvSocket;
+        if (tmpSrvSocket != null && IsMultiplexed()) {
+            // connections waiting in the backlog were made while the app was disconnected from the link
+            while (true) {
+                SocketChannel tmpChannel;
+                try {
+                    tmpChannel = tmpSrvSocket.accept();
+                } catch (IOException e) {
+                    RelayLog.i("BtToRequestSocket", "Accept failed: " + e.toString());
+                    break;
+                }
+                if (tmpChannel == null) {
+                    break;
+                }
+                try {tmpChannel.close();} catch (IOException e) {RelayLog.i("BtToRequestSocket", "Close error : " + e.toString());}
+            }
+        }
 
-        StartStreamCopyThreads();
+        mParked = false;
+        if (tmpSrvSocket != null && IsMultiplexed()) {
+            mRelayEngine.EnableInterest(tmpSrvSocket, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    // ask the remote peer to carry all local connections over this one link, must be set before start()
+    public void SetMultiplex(boolean multiplex) {
+        mMultiplex = multiplex;
+    }
+
+    // ask the remote peer to deflate larger data frames, this makes the link framed like SetMultiplex does
+    public void SetCompress(boolean compress) {
+        mCompress = compress;
+    }
+
+    // relay node.js connections over a Unix-domain socket instead of TCP, must be set before start(), null for TCP
+    public void SetUnixDomain(UnixDomainTransport unixDomain) {
+        mUnixDomain = unixDomain;
+    }
+
+    public boolean IsUnixDomain() {
+        return mUnixDomain != null;
+    }
 
-        Log.i("BtToRequestSocket", "rin ended ---------------------------;");
+    public int GetListeningPort() {
+        return mListeningPort;
+    }
+
+    // returns the port node.js should connect to, 0 if not listening within the timeout
+    public int AwaitListeningPort(long timeoutMillis) throws InterruptedException {
+        mListeningLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return mListeningPort;
     }
 
     private  int GetLocalHostPort() {
-        return srvSocket == null ? 0 : srvSocket.getLocalPort();
+        ServerSocketChannel tmpSrvSoc = srvSocket;
+        return tmpSrvSoc == null ? 0 : tmpSrvSoc.socket().getLocalPort();
     }
 
     public void Stop() {
         super.Stop();
 
-        ServerSocket tmpSrvSoc = srvSocket;
+        ServerSocketChannel tmpSrvSoc = srvSocket;
         srvSocket = null;
         if (tmpSrvSoc != null) {
-            try {Log.i("BtToRequestSocket", "Close server socket");
-                tmpSrvSoc.close();} catch (IOException e) {Log.i("BtToRequestSocket", "Close error : " + e.toString());}
+            try {RelayLog.i("BtToRequestSocket", "Close server socket");
+                tmpSrvSoc.close();} catch (IOException e) {RelayLog.i("BtToRequestSocket", "Close error : " + e.toString());}
+        }
+
+        UnixDomainTransport.Listener tmpLocalServer = mLocalServer;
+        mLocalServer = null;
+        if (tmpLocalServer != null) {
+            RelayLog.i("BtToRequestSocket", "Close Unix-domain server socket");
+            tmpLocalServer.Close();
         }
     }
 }
@@ -1,60 +1,280 @@
 package io.jxcore.node;
 
-import android.bluetooth.BluetoothSocket;
-import android.util.Log;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Inet4Address;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by juksilve on 15.5.2015.
  */
 class BtToServerSocket extends BtToSocketBase {
 
-    private int mHTTPPort = 0;
+    // a peer that wants a framed link sends its hello right after connecting, a plain one sends nothing
+    // until its local client does. If nothing came by then, the link is taken as plain and connected
+    // locally, so a server that speaks first gets its greeting across
+    public static final long DEFAULT_HELLO_WAIT_MILLIS = 1000;
+    private volatile long mHelloWaitMillis = DEFAULT_HELLO_WAIT_MILLIS;
+
+    // makes the connections to the local server, shared by all incoming links
+    private LocalConnector mLocalConnector = null;
+    // how long the link waited for a free bridge before it was started
+    private volatile long mAdmissionWaitMillis = 0;
+    // set by whichever comes first, the first Bluetooth bytes or the end of the hello wait
+    private final AtomicBoolean mStartDecided = new AtomicBoolean(false);
+    // the plain stream connected when the hello wait ran out, or null if that failed
+    private volatile RelayStream mEarlyStream = null;
+    private final CountDownLatch mEarlyStarted = new CountDownLatch(1);
+
+    public BtToServerSocket(LinkTransport socket, BtSocketDisconnectedCallBack handler, RelayEngine relayEngine) throws IOException{
+        super(socket,handler,relayEngine);
+        RelayLog.i("BtToRequestSocket", "Creating BTConnectedThread");
+    }
 
-    public BtToServerSocket(BluetoothSocket socket, BtSocketDisconnectedCallBack handler) throws IOException{
-        super(socket,handler);
-        Log.i("BtToRequestSocket", "Creating BTConnectedThread");
+    public void setLocalConnector(LocalConnector connector){
+        mLocalConnector = connector;
     }
 
-    public void setPort(int port){
-        mHTTPPort = port;
+    public void SetAdmissionWaitMillis(long waitMillis) {
+        mAdmissionWaitMillis = waitMillis;
+    }
+
+    public long GetAdmissionWaitMillis() {
+        return mAdmissionWaitMillis;
+    }
+
+    public void SetHelloWait(long waitMillis) {
+        mHelloWaitMillis = Math.max(0, waitMillis);
     }
 
     public void run() {
 
-        Log.i("BtToRequestSocket", "--DoOneRunRound started");
+        RelayLog.i("BtToRequestSocket", "--DoOneRunRound started");
+
+        mRelayEngine.ScheduleLocalConnect(new Runnable() {
+            @Override
+            public void run() {
+                if (mStartDecided.compareAndSet(false, true)) {
+                    StartEarly();
+                }
+            }
+        }, mHelloWaitMillis);
+
+        // older peers, and peers not asking for anything, send the relayed bytes right away,
+        // so the first bytes tell us whether this link starts with a hello or not
+        ByteBuffer firstBytes = mRelayEngine.GetBufferPool().Acquire(RelayBufferPool.Side.BLUETOOTH);
+        int count = 0;
+        boolean early = false;
+        IOException readError = null;
+        try {
+            while (count < RelayProtocol.HELLO_SIZE
+                    && RelayProtocol.MatchingMagicBytes(firstBytes.array(), count) == Math.min(count, RelayProtocol.MAGIC.length)) {
+                int n = mmInStream.read(firstBytes.array(), firstBytes.arrayOffset() + count, firstBytes.capacity() - count);
+                if (n == -1) {
+                    throw new IOException("input stream got -1 on read");
+                }
+                if (count == 0 && n > 0 && !mStartDecided.compareAndSet(false, true)) {
+                    // the hello wait ran out before these came, so they are plain data or a hello that is too late
+                    early = true;
+                }
+                count += n;
+            }
+        } catch (IOException e) {
+            readError = e;
+            early = early || (count == 0 && !mStartDecided.compareAndSet(false, true));
+        }
+
+        if (early) {
+            ContinueEarly(firstBytes, count);
+            RelayLog.i("BtToRequestSocket", "--DoOneRunRound ended");
+            return;
+        }
+
+        if (readError != null) {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+            RelayLog.w("BtToRequestSocket", "Reading first bytes failed: " + readError.toString());
+            mHandler.Disconnected(that, "disconnected: " + readError.toString());
+            return;
+        }
+
+        int offset = 0;
+        if (count >= RelayProtocol.HELLO_SIZE && RelayProtocol.MatchingMagicBytes(firstBytes.array(), count) == RelayProtocol.MAGIC.length) {
+            int acceptedFlags = 0;
+            if (firstBytes.get(RelayProtocol.MAGIC.length) == RelayProtocol.VERSION) {
+                acceptedFlags = firstBytes.get(RelayProtocol.MAGIC.length + 1) & RelayProtocol.SUPPORTED_FLAGS;
+            }
+            if (GetHalfCloseTimeoutMillis() <= 0 || !RelayProtocol.IsFramed(acceptedFlags)) {
+                acceptedFlags &= ~RelayProtocol.FLAG_HALF_CLOSE;
+            }
 
-        InputStream tmpInputStream = null;
-        OutputStream tmpOutputStream = null;
+            try {
+                RelayProtocol.WriteHello(mmOutStream, acceptedFlags);
+            } catch (IOException e) {
+                mRelayEngine.GetBufferPool().Release(firstBytes);
+                RelayLog.w("BtToRequestSocket", "Relay hello failed: " + e.toString());
+                mHandler.Disconnected(that, "disconnected: " + e.toString());
+                return;
+            }
+
+            offset = RelayProtocol.HELLO_SIZE;
+            if (RelayProtocol.IsFramed(acceptedFlags)) {
+                // the requesting side waits for our answer before it sends any frames
+                mRelayEngine.GetBufferPool().Release(firstBytes);
+                if (count > offset) {
+                    mHandler.Disconnected(that, "data sent before hello was answered");
+                    return;
+                }
+                if ((acceptedFlags & RelayProtocol.FLAG_COMPRESS) != 0) {
+                    EnableCompression();
+                }
+                if ((acceptedFlags & RelayProtocol.FLAG_HALF_CLOSE) != 0) {
+                    EnableHalfClose();
+                }
+                RelayLog.i("BtToRequestSocket", "Multiplexed link, local connections are made per stream, compressed: " + IsCompressed());
+                StartFramedRelay(null);
+                RelayLog.i("BtToRequestSocket", "--DoOneRunRound ended");
+                return;
+            }
+        }
+
+        SocketChannel tmpChannel = null;
+        LinkTransport tmpLocalSocket = null;
+        long connectNanos = System.nanoTime();
         try {
-            Inet4Address mLocalHostAddress = (Inet4Address) Inet4Address.getByName("localhost");
-            localHostSocket = new Socket(mLocalHostAddress, mHTTPPort);
+            if (mLocalConnector.IsUnixDomain()) {
+                tmpLocalSocket = mLocalConnector.ConnectUnix();
+                RelayLog.i("BtToRequestSocket", "Connected to local server over Unix-domain socket");
+            } else {
+                tmpChannel = ConnectLocal();
+                RelayLog.i("BtToRequestSocket", "LocalHost address: " + tmpChannel.socket().getInetAddress() + ", port: " + tmpChannel.socket().getPort());
+            }
+
+        } catch (IOException e) {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+            RelayLog.w("BtToRequestSocket", "Creating local input streams failed: " + e.toString());
+            mHandler.Disconnected(that, "creating local input streams failed");
+            return;
+        }
+        mRelayEngine.GetConnectTimings().RecordSince(true, ConnectTimings.Phase.LOCAL_CONNECT, connectNanos);
 
-            Log.i("BtToRequestSocket", "LocalHost address: " + GetLocalHostAddressAsString() + ", port: " + GetLocalHostPort());
+        ByteBuffer initialData = null;
+        if (count > offset) {
+            firstBytes.position(offset);
+            firstBytes.limit(count);
+            initialData = firstBytes;
+        } else {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+        }
 
-            tmpInputStream = localHostSocket.getInputStream();
-            tmpOutputStream = localHostSocket.getOutputStream();
+        if (tmpLocalSocket != null) {
+            StartRelay(tmpLocalSocket, initialData);
+        } else {
+            StartRelay(tmpChannel, initialData);
+        }
 
+        RelayLog.i("BtToRequestSocket", "--DoOneRunRound ended");
+    }
+
+    // runs on the local connect thread once the hello wait is over without any Bluetooth bytes
+    private void StartEarly() {
+        RelayLog.i("BtToRequestSocket", "No hello within " + mHelloWaitMillis + " ms, relaying plain");
+        try {
+            mEarlyStream = ConnectStream(0);
         } catch (IOException e) {
-            Log.i("BtToRequestSocket", "Creating local input streams failed: " + e.toString());
+            RelayLog.w("BtToRequestSocket", "Creating local input streams failed: " + e.toString());
             mHandler.Disconnected(that, "creating local input streams failed");
+        } finally {
+            mEarlyStarted.countDown();
+        }
+    }
+
+    // the first bytes, if any, came after the hello wait and go to the plain stream made for it.
+    // A hello among them means the requester is waiting for a framed link we can no longer give it
+    private void ContinueEarly(ByteBuffer firstBytes, int count) {
+        try {
+            mEarlyStarted.await();
+        } catch (InterruptedException e) {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+            return;
+        }
+
+        RelayStream stream = mEarlyStream;
+        if (stream != null && count >= RelayProtocol.HELLO_SIZE
+                && RelayProtocol.MatchingMagicBytes(firstBytes.array(), count) == RelayProtocol.MAGIC.length) {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+            RelayError("hello came after the link was started plain");
             return;
         }
 
-        LocalInputStream = tmpInputStream;
-        LocalOutputStream = tmpOutputStream;
+        if (stream == null || count == 0) {
+            mRelayEngine.GetBufferPool().Release(firstBytes);
+            if (stream == null) {
+                // failure was reported already
+                return;
+            }
+            firstBytes = null;
+        } else {
+            firstBytes.position(0);
+            firstBytes.limit(count);
+        }
+        // a failed first read fails again here, and ends the link once the local side is drained
+        RelayPlain(stream, firstBytes);
+    }
 
-        StartStreamCopyThreads();
+    // the remote peer got a new local connection, so we make one to our server for it.
+    // Connecting may block, so it is done on the local connect thread and the stream's frames wait meanwhile
+    @Override
+    protected void OnOpenStream(final int streamId) {
+        StartConnecting(streamId);
+        boolean scheduled = mRelayEngine.ExecuteLocalConnect(new Runnable() {
+            @Override
+            public void run() {
+                RelayStream stream = null;
+                try {
+                    stream = ConnectStream(streamId);
+                } catch (IOException e) {
+                    RelayLog.w("BtToRequestSocket", "Creating local stream " + streamId + " failed: " + e.toString());
+                }
+                EndConnecting(streamId, stream);
+            }
+        });
+        if (!scheduled) {
+            EndConnecting(streamId, null);
+        }
+    }
+
+    // returns the added stream, or null if the link could not take it
+    private RelayStream ConnectStream(int streamId) throws IOException {
+        long connectNanos = System.nanoTime();
+        if (mLocalConnector.IsUnixDomain()) {
+            LinkTransport tmpLocalSocket = mLocalConnector.ConnectUnix();
+            mRelayEngine.GetConnectTimings().RecordSince(true, ConnectTimings.Phase.LOCAL_CONNECT, connectNanos);
+            return AddStream(streamId, tmpLocalSocket);
+        }
+
+        SocketChannel tmpChannel = ConnectLocal();
+        mRelayEngine.GetConnectTimings().RecordSince(true, ConnectTimings.Phase.LOCAL_CONNECT, connectNanos);
+        return AddStream(streamId, tmpChannel);
+    }
+
+    @Override
+    protected boolean IsIncoming() {
+        return true;
+    }
+
+    // from the Connected callback, through admission and the local connection, to the first bridge
+    @Override
+    protected void OnFirstStream(long startNanos) {
+        mRelayEngine.GetConnectTimings().RecordSince(true, ConnectTimings.Phase.TOTAL, mStats.GetCreatedNanos());
+    }
 
-        Log.i("BtToRequestSocket", "--DoOneRunRound ended");
+    private SocketChannel ConnectLocal() throws IOException {
+        return mLocalConnector.Connect();
     }
 
     public int GetLocalHostPort() {
-        return localHostSocket == null ? 0 : localHostSocket.getPort();
+        SocketChannel tmpChannel = GetAnyLocalChannel();
+        return tmpChannel == null ? 0 : tmpChannel.socket().getPort();
     }
 }
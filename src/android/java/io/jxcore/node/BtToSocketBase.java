@@ -1,144 +1,1145 @@
 package io.jxcore.node;
 
-import android.bluetooth.BluetoothSocket;
-import android.util.Log;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Created by juksilve on 25.8.2015.
  */
-public class BtToSocketBase extends Thread implements StreamCopyingThread.CopyThreadCallback  {
+public class BtToSocketBase extends Thread implements RelayEngine.ChannelHandler, BandwidthScheduler.Writer {
 
     final BtToSocketBase that = this;
     protected final BtSocketDisconnectedCallBack mHandler;
+    protected final RelayEngine mRelayEngine;
 
-    protected final BluetoothSocket mmSocket;
-    protected Socket localHostSocket = null;
+    protected final LinkTransport mmSocket;
 
     protected final InputStream mmInStream;
     protected final OutputStream mmOutStream;
-    protected InputStream LocalInputStream = null;
-    protected OutputStream LocalOutputStream = null;
 
     private String mPeerId = "";
     private String mPeerName = "";
     private String mPeerAddress = "";
 
-    protected StreamCopyingThread SendingThread = null;
-    protected StreamCopyingThread ReceivingThread = null;
+    // how much data we let pile up per direction before we stop reading from the source,
+    // reading resumes once the queue has drained down to the low watermark
+    public static final int DEFAULT_HIGH_WATERMARK = 1024 * 64;
+    public static final int DEFAULT_LOW_WATERMARK = 1024 * 16;
+    public static final int MAX_WATERMARK = 1024 * 1024;
+    private volatile int mHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile int mLowWatermark = DEFAULT_LOW_WATERMARK;
+
+    // local connections relayed over this link, a plain link only ever has stream 0
+    private final ConcurrentHashMap<Integer, RelayStream> mStreams = new ConcurrentHashMap<Integer, RelayStream>();
+    private volatile boolean mFramed = false;
+    private final AtomicInteger mLocalConnectionCount = new AtomicInteger(0);
+    // streams opened by the remote end whose local connection is still being made, guarded by itself
+    private final HashMap<Integer, PendingStream> mPendingStreams = new HashMap<Integer, PendingStream>();
+
+    // keep-alive, framed links only: the server channel new local connections are accepted from, and how long
+    // the link may stay without any local connection before it is released. Links without acceptor don't time out.
+    // A plain link carries one byte stream to one remote connection, so it always ends with its local connection
+    private volatile SelectableChannel mAcceptor = null;
+    // true once the link takes new local connections, from mAcceptor or, for Unix-domain sockets, on a thread of its own
+    private volatile boolean mAccepting = false;
+    private volatile long mKeepAliveIdleMillis = 0;
+    private volatile long mIdleSinceNanos = 0;
+    private final Object mToLocalLock = new Object();
+
+    // half-close, agreed in the hello: a stream whose local input ended sends FIN and keeps taking data
+    // for the other direction, until that ends too or has been idle for the timeout. A plain link can't
+    // send FIN, on the requesting side it keeps relaying to the local side until the remote ends the link
+    // or the same timeout passes
+    public static final long DEFAULT_HALF_CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+    private volatile long mHalfCloseTimeoutMillis = DEFAULT_HALF_CLOSE_TIMEOUT_MILLIS;
+    private volatile boolean mHalfClose = false;
+    // set when a plain link goes down once what is queued for Bluetooth has been written
+    private volatile String mEndWhenWritten = null;
+    // how long the Bluetooth reader waits for data already received to be written to the local connections
+    private static final long LOCAL_DRAIN_TIMEOUT_MILLIS = 5 * 1000;
+
+    // localhost -> Bluetooth, filled by the relay selector and drained by the Bluetooth writer pool
+    private final ConcurrentLinkedQueue<ByteBuffer> mToBtQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger mToBtBytes = new AtomicInteger(0);
+    private final AtomicBoolean mLocalReadPaused = new AtomicBoolean(false);
 
-    public BtToSocketBase(BluetoothSocket socket, BtSocketDisconnectedCallBack handler) throws IOException {
-        Log.i("BtToSocketBase","BtToSocketBase BtConnectedRequestSocket");
+    private final RelayBufferPool mBufferPool;
+    private final BandwidthScheduler.Entry mSchedulerEntry;
+    protected final RelayStats mStats = new RelayStats();
+    // details of the STALL and RESUME trace records
+    private static final String TRACE_TO_LOCAL = "toLocal";
+    private static final String TRACE_TO_BLUETOOTH = "toBluetooth";
+
+    // optional Nagle style batching of localhost data before it is written to Bluetooth
+    public static final long MAX_COALESCE_DELAY_MICROS = 1000 * 1000;
+    private volatile int mCoalesceBytes = 0;
+    private volatile long mCoalesceDelayMicros = 0;
+    // only touched by the running Bluetooth write task
+    private byte[] mCoalesceBuffer = null;
+    private int mCoalescedCount = 0;
+    private long mCoalesceStartNanos = 0;
+    private final AtomicBoolean mCoalesceFlushScheduled = new AtomicBoolean(false);
+    // set when gathered data must go out on the next turn even without reaching the threshold
+    private volatile boolean mCoalesceFlushDue = false;
+
+    // optional compression of DATA frames, agreed in the hello. The deflater is used by the running
+    // Bluetooth write task and the inflater by the Bluetooth reader, each keeps its dictionary for the whole link
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 256;
+    private volatile int mCompressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+    private final Object mDeflaterLock = new Object();
+    private Deflater mDeflater = null;
+    private Inflater mInflater = null;
+    private volatile boolean mCompressed = false;
+    private byte[] mCompressBuffer = null;
+    private byte[] mInflateInput = null;
+
+    private final AtomicBoolean mDisconnected = new AtomicBoolean(false);
+    private volatile boolean mStopped = false;
+
+    public BtToSocketBase(LinkTransport socket, BtSocketDisconnectedCallBack handler, RelayEngine relayEngine) throws IOException {
+        RelayLog.i("BtToSocketBase","BtToSocketBase BtConnectedRequestSocket");
         mHandler = handler;
+        mRelayEngine = relayEngine;
+        mBufferPool = relayEngine.GetBufferPool();
+        mSchedulerEntry = relayEngine.GetScheduler().Add(this);
         mmSocket = socket;
-        mmInStream = mmSocket.getInputStream();
-        mmOutStream = mmSocket.getOutputStream();
+        mmInStream = mmSocket.GetInputStream();
+        mmOutStream = mmSocket.GetOutputStream();
+    }
+
+    // plain relay of one localhost connection: the channel is handed over to the relay selector,
+    // and this thread keeps reading the Bluetooth input stream until the link goes down.
+    // initialData holds bytes already read from Bluetooth that belong to the connection, or null
+    protected void StartRelay(SocketChannel channel, ByteBuffer initialData) {
+        if (mmInStream == null || mmOutStream == null || channel == null) {
+            RelayLog.i("BtToRequestSocket", "at least one stream is null");
+            mHandler.Disconnected(that, "at least one stream is null");
+            return;
+        }
+
+        RelayPlain(AddStream(0, channel), initialData);
+    }
+
+    // same for a Unix-domain local connection
+    protected void StartRelay(LinkTransport socket, ByteBuffer initialData) {
+        if (mmInStream == null || mmOutStream == null) {
+            RelayLog.i("BtToRequestSocket", "at least one stream is null");
+            mHandler.Disconnected(that, "at least one stream is null");
+            return;
+        }
+
+        RelayPlain(AddStream(0, socket), initialData);
+    }
+
+    protected void RelayPlain(RelayStream stream, ByteBuffer initialData) {
+        if (stream == null) {
+            return;
+        }
+
+        if (initialData != null) {
+            MarkActivity();
+            mStats.ToLocal.AddChunk(initialData.remaining());
+            stream.QueueToLocal(initialData);
+        }
+        ReadBluetoothPlain(stream);
     }
 
-    protected void StartStreamCopyThreads() {
-        if (mmInStream == null || LocalInputStream == null || mmOutStream == null || LocalOutputStream == null || localHostSocket == null) {
-            Log.i("BtToRequestSocket", "at least one stream is null");
+    // for links that accept their Unix-domain connections on their own thread, call before starting the relay
+    protected void AcceptOnOwnThread() {
+        mAccepting = true;
+    }
+
+    // framed relay, the streams are opened with AddStream as local connections come and go.
+    // acceptor is the non-blocking server channel whose connections become new streams, or null
+    protected void StartFramedRelay(SelectableChannel acceptor) {
+        if (mmInStream == null || mmOutStream == null) {
+            RelayLog.i("BtToRequestSocket", "at least one stream is null");
             mHandler.Disconnected(that, "at least one stream is null");
             return;
         }
 
-        SendingThread = new StreamCopyingThread(this, LocalInputStream, mmOutStream);
-        // as we have set DefaultUncaughtExceptionHandler for the main thread, we can forward any exceptions from copy thread as well
-        SendingThread.setDefaultUncaughtExceptionHandler(that.getUncaughtExceptionHandler());
-        SendingThread.start();
+        mFramed = true;
+        if (acceptor != null) {
+            mAcceptor = acceptor;
+            mAccepting = true;
+            mRelayEngine.Register(acceptor, this, SelectionKey.OP_ACCEPT);
+        }
+        if (mAccepting) {
+            ArmIdleTimer();
+        }
+        ReadBluetoothFramed();
+
+        // the inflater is only used by this thread, so it can go as soon as reading is done
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+
+    protected RelayStream AddStream(int streamId, SocketChannel channel) {
+        long startNanos = System.nanoTime();
+        try {
+            channel.configureBlocking(false);
+            // a chunk relayed in more than one write would otherwise wait for the delayed ACK of the first part
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            RelayError("configuring local channel failed: " + e.toString());
+            return null;
+        }
+
+        RelayStream stream = new RelayStream(this, streamId, channel, mFramed);
+        mStreams.put(streamId, stream);
+        mIdleSinceNanos = 0;
+        boolean first = mLocalConnectionCount.incrementAndGet() == 1;
+        if (mStopped) {
+            stream.Close();
+            return null;
+        }
+
+        mRelayEngine.Register(channel, stream);
+        StreamBridged(streamId, startNanos, first);
+        return stream;
+    }
+
+    protected RelayStream AddStream(int streamId, LinkTransport socket) {
+        long startNanos = System.nanoTime();
+        RelayStream stream = new RelayStream(this, streamId, socket, mFramed);
+        mStreams.put(streamId, stream);
+        mIdleSinceNanos = 0;
+        boolean first = mLocalConnectionCount.incrementAndGet() == 1;
+        if (mStopped) {
+            stream.Close();
+            return null;
+        }
+
+        try {
+            stream.StartLocalTransportReader();
+        } catch (IOException e) {
+            stream.Close();
+            RelayError("starting local socket reader failed: " + e.toString());
+            return null;
+        }
+        StreamBridged(streamId, startNanos, first);
+        return stream;
+    }
+
+    // startNanos is when the local connection was handed to AddStream
+    private void StreamBridged(int streamId, long startNanos, boolean first) {
+        mRelayEngine.GetConnectTimings().RecordSince(IsIncoming(), ConnectTimings.Phase.BRIDGE, startNanos);
+        Trace(RelayTrace.Event.ACCEPT, streamId, mLocalConnectionCount.get(), null);
+        if (first) {
+            OnFirstStream(startNanos);
+        }
+    }
+
+    // called for every chunk relayed in either direction
+    void MarkActivity() {
+        if (mStats.MarkActivity()) {
+            Trace(RelayTrace.Event.FIRST_BYTE, 0, System.nanoTime() - mStats.GetCreatedNanos(), null);
+        }
+    }
+
+    private void Trace(RelayTrace.Event event, int streamId, long value, String detail) {
+        mRelayEngine.GetTrace().Record(event, mPeerId, streamId, value, detail);
+    }
+
+    // which set of connect timings this link records to
+    protected boolean IsIncoming() {
+        return false;
+    }
+
+    // called once the first local connection of the link is relayed, startNanos is when it was handed over
+    protected void OnFirstStream(long startNanos) {
+    }
+
+    // both ends must agree on this before any frame goes out, see RelayProtocol.FLAG_COMPRESS
+    protected void EnableCompression() {
+        synchronized (mDeflaterLock) {
+            if (mDeflater == null && !mStopped) {
+                mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                mInflater = new Inflater();
+                mCompressed = true;
+            }
+        }
+    }
+
+    // DATA frames with less payload than this are sent as they are
+    public void SetCompressThreshold(int thresholdBytes) {
+        mCompressThreshold = Math.max(0, thresholdBytes);
+    }
+
+    public boolean IsCompressed() {
+        return mCompressed;
+    }
+
+    // both ends must agree on this before any frame goes out, see RelayProtocol.FLAG_HALF_CLOSE
+    protected void EnableHalfClose() {
+        mHalfClose = true;
+    }
+
+    // timeoutMillis <= 0 means half-close is neither asked for nor accepted: a stream closes with its input,
+    // and a plain link ends once what its local connection sent has gone out
+    public void SetHalfCloseTimeout(long timeoutMillis) {
+        mHalfCloseTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    public long GetHalfCloseTimeoutMillis() {
+        return mHalfCloseTimeoutMillis;
+    }
+
+    public boolean IsHalfClose() {
+        return mHalfClose;
+    }
+
+    // called when the remote end asks for a new stream, sides that can't open local connections refuse it
+    protected void OnOpenStream(int streamId) {
+        SendFrame(RelayProtocol.FRAME_CLOSE, streamId, 0);
+    }
+
+    // the frames that come for a stream while its local connection is made, handed over once it is there
+    private static class PendingStream {
+        final ArrayList<ByteBuffer> Data = new ArrayList<ByteBuffer>();
+        boolean Fin = false;
+        boolean Closed = false;
+    }
+
+    // call on the Bluetooth reader thread before connecting the stream locally on another thread,
+    // and EndConnecting once that is done
+    protected void StartConnecting(int streamId) {
+        synchronized (mPendingStreams) {
+            mPendingStreams.put(streamId, new PendingStream());
+        }
+    }
+
+    // stream is the added stream, or null if the local connection failed
+    protected void EndConnecting(int streamId, RelayStream stream) {
+        ArrayList<ByteBuffer> data = new ArrayList<ByteBuffer>();
+        PendingStream pending;
+        while (true) {
+            synchronized (mPendingStreams) {
+                pending = mPendingStreams.get(streamId);
+                if (pending == null) {
+                    // link was stopped meanwhile
+                    return;
+                }
+                if (pending.Data.isEmpty()) {
+                    mPendingStreams.remove(streamId);
+                    break;
+                }
+                data.addAll(pending.Data);
+                pending.Data.clear();
+            }
+
+            // queued outside the lock, the reader keeps adding to the pending stream until it is removed
+            for (ByteBuffer buffer : data) {
+                if (stream == null) {
+                    mBufferPool.Release(buffer);
+                } else {
+                    stream.QueueToLocal(buffer);
+                }
+            }
+            data.clear();
+        }
+
+        if (stream == null) {
+            if (!pending.Closed) {
+                SendFrame(RelayProtocol.FRAME_CLOSE, streamId, 0);
+            }
+        } else if (pending.Closed) {
+            stream.CloseAfterDrain();
+        } else if (pending.Fin) {
+            stream.ShutdownOutputAfterDrain();
+        }
+    }
+
+    // keeps a DATA, FIN or CLOSE frame for a stream that is still connecting, buffer is the data or null
+    private boolean KeepForPending(int streamId, byte type, ByteBuffer buffer) {
+        synchronized (mPendingStreams) {
+            PendingStream pending = mPendingStreams.get(streamId);
+            if (pending == null) {
+                return false;
+            }
+            if (buffer != null) {
+                pending.Data.add(buffer);
+            } else if (type == RelayProtocol.FRAME_FIN) {
+                pending.Fin = true;
+            } else {
+                pending.Closed = true;
+            }
+            return true;
+        }
+    }
+
+    private boolean IsConnecting(int streamId) {
+        synchronized (mPendingStreams) {
+            return mPendingStreams.containsKey(streamId);
+        }
+    }
+
+    private void ReadBluetoothPlain(RelayStream stream) {
+        while (!mStopped) {
+            ByteBuffer buffer = mBufferPool.Acquire(RelayBufferPool.Side.BLUETOOTH);
+            int n;
+            long startNanos = System.nanoTime();
+            try {
+                n = mmInStream.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                mStats.ToLocal.AddReadTime(System.nanoTime() - startNanos);
+            } catch (IOException e) {
+                mBufferPool.Release(buffer);
+                // Bluetooth input stream gives error, we know that connection has been disconnected from other end.
+                EndAfterLocalDrain("disconnected: " + e.toString());
+                return;
+            }
+
+            if (n == -1) {
+                mBufferPool.Release(buffer);
+                EndAfterLocalDrain("input stream got -1 on read");
+                return;
+            }
+
+            mBufferPool.RecordRead(RelayBufferPool.Side.BLUETOOTH, n, buffer.capacity());
+            if (n == 0) {
+                mBufferPool.Release(buffer);
+                continue;
+            }
+
+            MarkActivity();
+            mStats.ToLocal.AddChunk(n);
+
+            buffer.limit(n);
+            int queued = stream.QueueToLocal(buffer);
+            mStats.ToLocal.RecordQueued(queued);
+            if (queued > mHighWatermark) {
+                // local side is slow, wait for the selector to drain before reading more from Bluetooth
+                mStats.ToLocal.BackpressureStarted();
+                Trace(RelayTrace.Event.STALL, 0, queued, TRACE_TO_LOCAL);
+                synchronized (mToLocalLock) {
+                    while (!mStopped && !stream.IsClosed() && stream.GetQueuedToLocal() > mLowWatermark) {
+                        try {
+                            mToLocalLock.wait(100);
+                        } catch (InterruptedException e) {
+                            mStats.ToLocal.BackpressureEnded();
+                            return;
+                        }
+                    }
+                }
+                mStats.ToLocal.BackpressureEnded();
+                Trace(RelayTrace.Event.RESUME, 0, stream.GetQueuedToLocal(), TRACE_TO_LOCAL);
+            }
+        }
+    }
+
+    // in framed mode every stream has its own credit window, so one slow local connection
+    // never holds up the others and this thread does not need to wait for the local side
+    private void ReadBluetoothFramed() {
+        byte[] header = new byte[RelayProtocol.HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+        while (!mStopped) {
+            long startNanos = System.nanoTime();
+            try {
+                RelayProtocol.ReadFully(mmInStream, header, 0, header.length);
+            } catch (IOException e) {
+                // Bluetooth input stream gives error, we know that connection has been disconnected from other end.
+                // A peer closes between frames, so what it sent before is complete
+                EndAfterLocalDrain("disconnected: " + e.toString());
+                return;
+            }
+
+            byte type = headerBuffer.get(0);
+            int streamId = headerBuffer.getInt(1);
+            int length = headerBuffer.getInt(5);
+            RelayStream stream = mStreams.get(streamId);
+
+            switch (type) {
+                case RelayProtocol.FRAME_DATA: {
+                    if (length <= 0 || length > RelayProtocol.INITIAL_WINDOW) {
+                        RelayError("invalid data frame length " + length);
+                        return;
+                    }
+
+                    ByteBuffer buffer = mBufferPool.Acquire(length);
+                    try {
+                        RelayProtocol.ReadFully(mmInStream, buffer.array(), buffer.arrayOffset(), length);
+                        mStats.ToLocal.AddReadTime(System.nanoTime() - startNanos);
+                    } catch (IOException e) {
+                        mBufferPool.Release(buffer);
+                        RelayError("disconnected: " + e.toString());
+                        return;
+                    }
+
+                    MarkActivity();
+                    mStats.ToLocal.AddChunk(length);
+                    buffer.limit(length);
+                    QueueFrameData(streamId, buffer);
+                    break;
+                }
+                case RelayProtocol.FRAME_DATA_COMPRESSED: {
+                    ByteBuffer buffer;
+                    try {
+                        buffer = ReadCompressedPayload(length);
+                        mStats.ToLocal.AddReadTime(System.nanoTime() - startNanos);
+                    } catch (IOException e) {
+                        RelayError("disconnected: " + e.toString());
+                        return;
+                    }
+
+                    MarkActivity();
+                    mStats.ToLocal.AddChunk(buffer.remaining());
+                    QueueFrameData(streamId, buffer);
+                    break;
+                }
+                case RelayProtocol.FRAME_WINDOW:
+                    if (stream != null) {
+                        stream.AddSendCredit(length);
+                    }
+                    break;
+                case RelayProtocol.FRAME_OPEN:
+                    if (stream != null || IsConnecting(streamId)) {
+                        RelayError("stream " + streamId + " opened twice");
+                        return;
+                    }
+                    OnOpenStream(streamId);
+                    break;
+                case RelayProtocol.FRAME_FIN:
+                    if (!KeepForPending(streamId, type, null) && (stream = mStreams.get(streamId)) != null) {
+                        stream.ShutdownOutputAfterDrain();
+                    }
+                    break;
+                case RelayProtocol.FRAME_CLOSE:
+                    if (!KeepForPending(streamId, type, null) && (stream = mStreams.get(streamId)) != null) {
+                        stream.CloseAfterDrain();
+                    }
+                    break;
+                default:
+                    RelayError("unknown frame type " + type);
+                    return;
+            }
+        }
+    }
+
+    // the stream is looked up again, as it may have finished connecting while the payload was read
+    private void QueueFrameData(int streamId, ByteBuffer buffer) {
+        if (KeepForPending(streamId, RelayProtocol.FRAME_DATA, buffer)) {
+            return;
+        }
+
+        RelayStream stream = mStreams.get(streamId);
+        if (stream == null) {
+            // stream was closed here while the data was on its way
+            mBufferPool.Release(buffer);
+        } else {
+            stream.QueueToLocal(buffer);
+        }
+    }
+
+    // reads the payload of a compressed frame, and inflates it into a pooled buffer
+    private ByteBuffer ReadCompressedPayload(int length) throws IOException {
+        Inflater tmpInflater = mInflater;
+        if (tmpInflater == null) {
+            throw new IOException("compressed frame on a link without compression");
+        }
+        if (length <= RelayProtocol.COMPRESSED_PREFIX_SIZE || length > RelayProtocol.INITIAL_WINDOW * 2) {
+            throw new IOException("invalid compressed frame length " + length);
+        }
+
+        if (mInflateInput == null || mInflateInput.length < length) {
+            mInflateInput = new byte[length];
+        }
+        RelayProtocol.ReadFully(mmInStream, mInflateInput, 0, length);
+
+        int originalLength = ByteBuffer.wrap(mInflateInput).getInt(0);
+        if (originalLength <= 0 || originalLength > RelayProtocol.INITIAL_WINDOW) {
+            throw new IOException("invalid uncompressed length " + originalLength);
+        }
+
+        long startNanos = System.nanoTime();
+        ByteBuffer buffer = mBufferPool.Acquire(originalLength);
+        tmpInflater.setInput(mInflateInput, RelayProtocol.COMPRESSED_PREFIX_SIZE, length - RelayProtocol.COMPRESSED_PREFIX_SIZE);
+        int count = 0;
+        try {
+            while (count < originalLength) {
+                int n = tmpInflater.inflate(buffer.array(), buffer.arrayOffset() + count, originalLength - count);
+                if (n == 0 && (tmpInflater.needsInput() || tmpInflater.finished())) {
+                    break;
+                }
+                count += n;
+            }
+        } catch (DataFormatException e) {
+            mBufferPool.Release(buffer);
+            throw new IOException("inflating frame failed: " + e.toString());
+        }
+
+        if (count != originalLength || tmpInflater.getRemaining() != 0) {
+            mBufferPool.Release(buffer);
+            throw new IOException("compressed frame inflated to " + count + " bytes instead of " + originalLength);
+        }
 
-        ReceivingThread = new StreamCopyingThread(this, mmInStream, LocalOutputStream);
-        // as we have set DefaultUncaughtExceptionHandler for the main thread, we can forward any exceptions from copy thread as well
-        ReceivingThread.setDefaultUncaughtExceptionHandler(that.getUncaughtExceptionHandler());
-        ReceivingThread.start();
+        mStats.AddInflated(length, originalLength, System.nanoTime() - startNanos);
+        buffer.limit(originalLength);
+        return buffer;
     }
+
+    // called by streams with a buffer that is ready to go out as it is, frame header included
+    void QueueToBluetooth(ByteBuffer buffer) {
+        mToBtQueue.add(buffer);
+        if (mStopped) {
+            ReleaseQueued(mToBtQueue);
+            return;
+        }
+        int queued = mToBtBytes.addAndGet(buffer.remaining());
+        mStats.ToBluetooth.RecordQueued(queued);
+        if (queued > mHighWatermark && mLocalReadPaused.compareAndSet(false, true)) {
+            // the streams pause their local reads as they see this, see RelayStream.UpdateReadInterest
+            mStats.ToBluetooth.BackpressureStarted();
+            Trace(RelayTrace.Event.STALL, 0, queued, TRACE_TO_BLUETOOTH);
+            // the writer may have drained the queue before the flag was up, and would not look at it again
+            BtBytesDequeued(0);
+        }
+
+        ScheduleBtWrite();
+    }
+
+    boolean IsBluetoothBackpressured() {
+        return mLocalReadPaused.get();
+    }
+
+    void SendFrame(byte type, int streamId, int length) {
+        ByteBuffer buffer = mBufferPool.Acquire(RelayProtocol.HEADER_SIZE);
+        RelayProtocol.PutHeader(buffer, 0, type, streamId, length);
+        buffer.limit(RelayProtocol.HEADER_SIZE);
+        QueueToBluetooth(buffer);
+    }
+
+    // a stream's local connection ended or failed
+    void OnStreamEnded(RelayStream stream, String error) {
+        if (stream.IsClosed()) {
+            // closed from the Bluetooth side while the selector was still using it
+            return;
+        }
+
+        if (!mFramed) {
+            RelayError(error);
+            return;
+        }
+
+        if (RelayLog.IsVerbose()) {
+            RelayLog.i("BtToSocketBase","Stream " + stream.GetId() + " ended: " + error);
+        }
+        SendFrame(RelayProtocol.FRAME_CLOSE, stream.GetId(), 0);
+        stream.Close();
+    }
+
+    // a stream's local connection will send no more, what it sent may still be queued for Bluetooth
+    void OnStreamInputEnded(RelayStream stream, String reason) {
+        if (stream.IsClosed()) {
+            return;
+        }
+
+        if (!mFramed) {
+            // Bluetooth sockets can't be half closed, so the remote server never learns about this. What it
+            // still sends is relayed until it ends the link, or nothing came for the half-close timeout.
+            // On the serving side our local server is done answering, and ending the link is the only way
+            // to tell the remote client
+            long timeoutMillis = mHalfCloseTimeoutMillis;
+            if (timeoutMillis <= 0 || IsIncoming()) {
+                // the link goes, but not before what was read went out
+                mEndWhenWritten = reason;
+            } else {
+                Trace(RelayTrace.Event.HALF_CLOSE, stream.GetId(), 1, null);
+                ArmHalfCloseTimer(stream, timeoutMillis);
+            }
+            // nothing more comes from the local side, so whatever is gathered goes out now
+            mCoalesceFlushDue = true;
+            ScheduleBtWrite();
+            return;
+        }
+
+        if (!mHalfClose) {
+            OnStreamEnded(stream, reason);
+            return;
+        }
+
+        Trace(RelayTrace.Event.HALF_CLOSE, stream.GetId(), 1, null);
+        SendFrame(RelayProtocol.FRAME_FIN, stream.GetId(), 0);
+        if (stream.IsOutputShutdown()) {
+            stream.Close();
+            return;
+        }
+        ArmHalfCloseTimer(stream, mHalfCloseTimeoutMillis);
+    }
+
+    // our local output of the stream was shut down after a FIN from the other end
+    void OnStreamOutputShutdown(RelayStream stream) {
+        Trace(RelayTrace.Event.HALF_CLOSE, stream.GetId(), 0, null);
+        if (stream.IsInputEnded()) {
+            stream.Close();
+        }
+    }
+
+    // a half closed stream only lives on while the other direction is still moving
+    private void ArmHalfCloseTimer(final RelayStream stream, long delayMillis) {
+        mRelayEngine.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (stream.IsClosed()) {
+                    return;
+                }
+
+                long idleMillis = (System.nanoTime() - stream.GetLastToLocalNanos()) / 1000000;
+                long timeoutMillis = mHalfCloseTimeoutMillis;
+                if (idleMillis < timeoutMillis) {
+                    ArmHalfCloseTimer(stream, timeoutMillis - idleMillis);
+                    return;
+                }
+                OnStreamEnded(stream, "half closed and idle for " + idleMillis + " ms");
+            }
+        }, Math.max(1, delayMillis));
+    }
+
+    // the Bluetooth side ended, the local connections still get what was received before the link goes
+    private void EndAfterLocalDrain(String error) {
+        for (RelayStream stream : mStreams.values()) {
+            stream.CloseAfterDrain();
+        }
+
+        long deadlineNanos = System.nanoTime() + LOCAL_DRAIN_TIMEOUT_MILLIS * 1000000;
+        synchronized (mToLocalLock) {
+            while (!mStopped && !mStreams.isEmpty()) {
+                long waitMillis = (deadlineNanos - System.nanoTime()) / 1000000;
+                if (waitMillis <= 0) {
+                    break;
+                }
+                try {
+                    mToLocalLock.wait(waitMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        RelayError(error);
+    }
+
+    // ends every local connection but keeps the link, only for links that are reusable
+    public void CloseLocalConnections(String reason) {
+        for (RelayStream stream : mStreams.values()) {
+            OnStreamEnded(stream, reason);
+        }
+    }
+
+    void OnStreamClosed(RelayStream stream) {
+        Trace(RelayTrace.Event.CLOSE, stream.GetId(), 0, null);
+        mStreams.remove(stream.GetId(), stream);
+        if (mStreams.isEmpty()) {
+            ArmIdleTimer();
+        }
+        synchronized (mToLocalLock) {
+            mToLocalLock.notifyAll();
+        }
+    }
+
+    void OnLocalDrained(RelayStream stream) {
+        if (!mFramed && stream.GetQueuedToLocal() <= mLowWatermark) {
+            synchronized (mToLocalLock) {
+                mToLocalLock.notifyAll();
+            }
+        }
+    }
+
+    // the link is released if it is still without local connections after the keep-alive time
+    private void ArmIdleTimer() {
+        long idleMillis = mKeepAliveIdleMillis;
+        if (!mAccepting || idleMillis <= 0 || mStopped) {
+            return;
+        }
+
+        final long idleSince = System.nanoTime();
+        mIdleSinceNanos = idleSince;
+        mRelayEngine.Schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mIdleSinceNanos == idleSince && mStreams.isEmpty()) {
+                    RelayError("link idle for " + ((System.nanoTime() - idleSince) / 1000000) + " ms, releasing it");
+                }
+            }
+        }, idleMillis);
+    }
+
+    // idleMillis <= 0 turns keep-alive off, so a framed link with no local connections stays up until stopped.
+    // Plain links ignore it
+    public void SetKeepAlive(long idleMillis) {
+        mKeepAliveIdleMillis = Math.max(0, idleMillis);
+    }
+
+    public long GetKeepAliveMillis() {
+        return mKeepAliveIdleMillis;
+    }
+
+    // whether a new local connection to this link would be relayed, used to hand out the link again
+    public boolean IsReusable() {
+        return mFramed && mAccepting && mKeepAliveIdleMillis > 0 && !mStopped && !mDisconnected.get();
+    }
+
+    public int GetLocalConnectionCount() {
+        return mLocalConnectionCount.get();
+    }
+
+    @Override
+    public void OnLocalReadable(SelectableChannel channel) {
+        // the link itself only listens, reading is done by its streams
+    }
+
+    @Override
+    public void OnLocalWritable(SelectableChannel channel) {
+    }
+
     @Override
-    public void StreamCopyError(StreamCopyingThread who, String error) {
+    public void OnLocalAcceptable(SelectableChannel channel) {
+    }
+
+    private void ScheduleBtWrite() {
+        mRelayEngine.GetScheduler().Ready(mSchedulerEntry);
+    }
 
-        if(who == ReceivingThread){
-            // Receiving Thread is the one that is having Bluetooth input stream,
-            // thus if it gives error, we know that connection has been disconnected from other end.
-            Log.i("BtToSocketBase","ReceivingThread thread got error: " + error);
-        }else if(who == SendingThread){
-            //Sending socket has local input stream,
-            // thus if it is giving error we are getting local disconnection
-            Log.i("BtToSocketBase","SendingThread thread got error: " + error);
-        }else{
-            Log.i("BtToSocketBase","Dunno which thread got error: " + error);
+    // called by the bandwidth scheduler on a Bluetooth writer thread, only one call runs at any time for a link
+    @Override
+    public int WriteQuantum(int budgetBytes) {
+        if (mStopped) {
+            return 0;
+        }
+
+        String endWhenWritten = mEndWhenWritten;
+        if (endWhenWritten != null) {
+            // nothing more will be queued, so whatever is gathered goes out now
+            mCoalesceFlushDue = true;
+        }
+
+        int written;
+        try {
+            written = WriteToBluetooth(budgetBytes);
+        } catch (IOException e) {
+            RelayError("disconnected: " + e.toString());
+            return -1;
         }
-        mHandler.Disconnected(that,error);
+
+        if (endWhenWritten != null && mToBtQueue.isEmpty() && mCoalescedCount == 0) {
+            mEndWhenWritten = null;
+            RelayError(endWhenWritten);
+        }
+        return written;
     }
 
-    public String GetLocalHostAddressAsString() {
-        return localHostSocket == null || localHostSocket.getInetAddress() == null ? null : localHostSocket.getInetAddress().toString();
+    @Override
+    public boolean HasPendingWrites() {
+        return !mStopped && (!mToBtQueue.isEmpty() || mCoalesceFlushDue || mEndWhenWritten != null);
     }
 
-    public void Stop() {
+    @Override
+    public void SchedulerFailed(String error) {
+        RelayError(error);
+    }
 
-        StreamCopyingThread tmpSCTrec = ReceivingThread;
-        ReceivingThread = null;
-        if(tmpSCTrec != null){
-            Log.i("BtToSocketBase","Stop ReceivingThread");
-            tmpSCTrec.Stop();
+    // fired when the coalescing deadline passes without the threshold being reached
+    private final Runnable mCoalesceFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mCoalesceFlushScheduled.set(false);
+            mCoalesceFlushDue = true;
+            ScheduleBtWrite();
         }
+    };
+
+    // writes queued frames until about budgetBytes have gone out, returns the bytes written to Bluetooth
+    private int WriteToBluetooth(int budgetBytes) throws IOException {
+        // taken before gathering, a flush asked for while we run is handled by the next run. Left set with
+        // nothing gathered it would keep HasPendingWrites true and the scheduler calling us for nothing
+        boolean flushDue = mCoalesceFlushDue;
+        mCoalesceFlushDue = false;
 
-        StreamCopyingThread tmpSCTsend = SendingThread;
-        SendingThread = null;
-        if(tmpSCTsend != null){
-            Log.i("BtToSocketBase","Stop SendingThread");
-            tmpSCTsend.Stop();
+        int written = 0;
+        int threshold = mCoalesceBytes;
+        if (threshold <= 0) {
+            // coalescing may have just been switched off, so get rid of anything still gathered first
+            written += FlushCoalesced();
+
+            ByteBuffer buffer;
+            while (!mStopped && written < budgetBytes && (buffer = mToBtQueue.poll()) != null) {
+                int n = buffer.remaining();
+                try {
+                    ByteBuffer out = Compress(buffer);
+                    written += out.remaining();
+                    long startNanos = System.nanoTime();
+                    mmOutStream.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+                    mStats.ToBluetooth.AddWriteTime(System.nanoTime() - startNanos);
+                } finally {
+                    mBufferPool.Release(buffer);
+                }
+                BtBytesDequeued(n);
+            }
+            return written;
         }
 
-        CloseSocketAndStreams();
+        if (mCoalesceBuffer == null || mCoalesceBuffer.length != threshold) {
+            written += FlushCoalesced();
+            mCoalesceBuffer = new byte[threshold];
+        }
 
-        if (mmInStream != null) {
-            try {Log.i("BtToSocketBase","Close bt in");
-                mmInStream.close();} catch (IOException e) {Log.i("BtToSocketBase","Close error : " + e.toString());}
+        ByteBuffer buffer;
+        while (!mStopped && written < budgetBytes && (buffer = mToBtQueue.poll()) != null) {
+            int n = buffer.remaining();
+            try {
+                ByteBuffer out = Compress(buffer);
+                while (out.hasRemaining()) {
+                    if (mCoalescedCount == 0) {
+                        mCoalesceStartNanos = System.nanoTime();
+                    }
+
+                    int chunk = Math.min(out.remaining(), mCoalesceBuffer.length - mCoalescedCount);
+                    out.get(mCoalesceBuffer, mCoalescedCount, chunk);
+                    mCoalescedCount += chunk;
+
+                    if (mCoalescedCount == mCoalesceBuffer.length) {
+                        written += FlushCoalesced();
+                    }
+                }
+            } finally {
+                mBufferPool.Release(buffer);
+            }
+            BtBytesDequeued(n);
         }
 
-        if (mmOutStream != null) {
-            try {Log.i("BtToSocketBase","Close bt out");
-                mmOutStream.close();} catch (IOException e) {Log.i("BtToSocketBase","Close error : " + e.toString());}
+        if (mCoalescedCount == 0 || !mToBtQueue.isEmpty()) {
+            // with more queued we'll be back on our next turn, the deadline is checked then
+            return written;
         }
 
-        if (mmSocket != null) {
-            try {Log.i("BtToSocketBase","Close bt socket");
-                mmSocket.close();} catch (IOException e) {Log.i("BtToSocketBase","Close error : " + e.toString());}
+        long waitedMicros = (System.nanoTime() - mCoalesceStartNanos) / 1000;
+        long deadlineMicros = mCoalesceDelayMicros;
+        if (flushDue || waitedMicros >= deadlineMicros) {
+            written += FlushCoalesced();
+        } else if (mCoalesceFlushScheduled.compareAndSet(false, true)) {
+            if (!mRelayEngine.ScheduleBtWrite(mCoalesceFlushTask, deadlineMicros - waitedMicros)) {
+                mCoalesceFlushScheduled.set(false);
+                written += FlushCoalesced();
+            }
         }
+        return written;
     }
 
-    protected  void CloseSocketAndStreams() {
+    // returns the frame as it goes on the wire, either the buffer itself or a view of mCompressBuffer
+    // that is only valid until the next call. Only called from the running Bluetooth write task
+    private ByteBuffer Compress(ByteBuffer frame) {
+        int payload = frame.remaining() - RelayProtocol.HEADER_SIZE;
+        if (payload < Math.max(1, mCompressThreshold) || frame.get(frame.position()) != RelayProtocol.FRAME_DATA) {
+            return frame;
+        }
+
+        synchronized (mDeflaterLock) {
+            if (mDeflater == null) {
+                return frame;
+            }
+
+            long startNanos = System.nanoTime();
+            int headerSize = RelayProtocol.HEADER_SIZE + RelayProtocol.COMPRESSED_PREFIX_SIZE;
+            if (mCompressBuffer == null || mCompressBuffer.length < headerSize + payload + 64) {
+                mCompressBuffer = new byte[headerSize + payload + 64];
+            }
+
+            mDeflater.setInput(frame.array(), frame.arrayOffset() + frame.position() + RelayProtocol.HEADER_SIZE, payload);
+            int count = headerSize;
+            while (true) {
+                count += mDeflater.deflate(mCompressBuffer, count, mCompressBuffer.length - count, Deflater.SYNC_FLUSH);
+                if (count < mCompressBuffer.length) {
+                    // sync flush is complete once the deflater leaves room in the output
+                    break;
+                }
+                byte[] bigger = new byte[mCompressBuffer.length * 2];
+                System.arraycopy(mCompressBuffer, 0, bigger, 0, count);
+                mCompressBuffer = bigger;
+            }
+
+            ByteBuffer out = ByteBuffer.wrap(mCompressBuffer, 0, count);
+            int streamId = frame.getInt(frame.position() + 1);
+            RelayProtocol.PutHeader(out, 0, RelayProtocol.FRAME_DATA_COMPRESSED, streamId, count - RelayProtocol.HEADER_SIZE);
+            out.putInt(RelayProtocol.HEADER_SIZE, payload);
+
+            mStats.AddDeflated(payload, count - headerSize, System.nanoTime() - startNanos);
+            return out;
+        }
+    }
+
+    private int FlushCoalesced() throws IOException {
+        mCoalesceFlushDue = false;
+        if (mCoalescedCount == 0) {
+            return 0;
+        }
+
+        int count = mCoalescedCount;
+        mCoalescedCount = 0;
+        long startNanos = System.nanoTime();
+        mmOutStream.write(mCoalesceBuffer, 0, count);
+        mStats.ToBluetooth.AddWriteTime(System.nanoTime() - startNanos);
+        return count;
+    }
+
+    private void BtBytesDequeued(int n) {
+        int queued = mToBtBytes.addAndGet(-n);
+        if (queued <= mLowWatermark && mLocalReadPaused.compareAndSet(true, false)) {
+            mStats.ToBluetooth.BackpressureEnded();
+            Trace(RelayTrace.Event.RESUME, 0, queued, TRACE_TO_BLUETOOTH);
+            for (RelayStream stream : mStreams.values()) {
+                stream.UpdateReadInterest();
+            }
+        }
+    }
+
+    // both directions use the same marks, low must be below high
+    public void SetWatermarks(int highBytes, int lowBytes) {
+        mLowWatermark = Math.max(0, Math.min(lowBytes, highBytes - 1));
+        mHighWatermark = Math.max(1, Math.min(MAX_WATERMARK, highBytes));
+        // the queue may already be below the new low mark, let the streams check again
+        BtBytesDequeued(0);
+    }
+
+    public int GetHighWatermark() {
+        return mHighWatermark;
+    }
+
+    public int GetLowWatermark() {
+        return mLowWatermark;
+    }
+
+    // thresholdBytes <= 0 disables coalescing, so every local read is written to Bluetooth right away
+    public void SetCoalescing(int thresholdBytes, long deadlineMicros) {
+        mCoalesceDelayMicros = Math.max(0, Math.min(MAX_COALESCE_DELAY_MICROS, deadlineMicros));
+        mCoalesceBytes = Math.max(0, Math.min(RelayBufferPool.MAX_BUFFER_SIZE, thresholdBytes));
+        if (mCoalesceBytes <= 0) {
+            // pick up whatever might be sitting in the coalescing buffer now
+            mCoalesceFlushDue = true;
+            ScheduleBtWrite();
+        }
+    }
+
+    public int GetCoalesceBytes() {
+        return mCoalesceBytes;
+    }
+
+    public long GetCoalesceDelayMicros() {
+        return mCoalesceDelayMicros;
+    }
+
+    protected void RelayError(String error) {
+        if (!mDisconnected.compareAndSet(false, true)) {
+            return;
+        }
+
+        Trace(RelayTrace.Event.ERROR, 0, 0, error);
+        RelayLog.w("BtToSocketBase","Relay got error: " + error);
+        mHandler.Disconnected(that, error);
+    }
+
+    private void ReleaseQueued(ConcurrentLinkedQueue<ByteBuffer> queue) {
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            mBufferPool.Release(buffer);
+        }
+    }
+
+    public RelayStats GetStats() {
+        return mStats;
+    }
+
+    public boolean IsMultiplexed() {
+        return mFramed;
+    }
 
-        InputStream tmpLocStrIn = LocalInputStream;
-        LocalInputStream = null;
-        if (tmpLocStrIn != null) {
-            try {Log.i("BtToSocketBase","Close local in");
-                tmpLocStrIn.close();} catch (IOException e) {
-                Log.i("BtToSocketBase","Close error : " + e.toString());
+    // local connections of the link with one direction ended
+    public int GetHalfClosedCount() {
+        int count = 0;
+        for (RelayStream stream : mStreams.values()) {
+            if (stream.IsInputEnded() || stream.IsOutputShutdown()) {
+                count++;
             }
         }
+        return count;
+    }
+
+    public int GetStreamCount() {
+        return mStreams.size();
+    }
+
+    // the local connection of a plain link, or any open one of a multiplexed link
+    protected SocketChannel GetAnyLocalChannel() {
+        for (RelayStream stream : mStreams.values()) {
+            return stream.GetChannel();
+        }
+        return null;
+    }
+
+    public String GetLocalHostAddressAsString() {
+        SocketChannel tmpChannel = GetAnyLocalChannel();
+        return tmpChannel == null || tmpChannel.socket().getInetAddress() == null ? null : tmpChannel.socket().getInetAddress().toString();
+    }
 
-        OutputStream tmpLocStrOut = LocalOutputStream;
-        LocalOutputStream = null;
-        if (tmpLocStrOut != null) {
-            try {Log.i("BtToSocketBase","Close LocalOutputStream");
-                tmpLocStrOut.close();} catch (IOException e) {
-                Log.i("BtToSocketBase","Close error : " + e.toString());
+    public void Stop() {
+        mStopped = true;
+        mRelayEngine.GetScheduler().Remove(mSchedulerEntry);
+        Trace(RelayTrace.Event.STOP, 0, System.nanoTime() - mStats.GetCreatedNanos(), null);
+
+        synchronized (mToLocalLock) {
+            mToLocalLock.notifyAll();
+        }
+
+        CloseSocketAndStreams();
+
+        ReleaseQueued(mToBtQueue);
+        synchronized (mPendingStreams) {
+            for (PendingStream pending : mPendingStreams.values()) {
+                for (ByteBuffer buffer : pending.Data) {
+                    mBufferPool.Release(buffer);
+                }
             }
+            mPendingStreams.clear();
         }
 
-        Socket tmpLHSoc = localHostSocket;
-        localHostSocket = null;
-        if (tmpLHSoc != null) {
-            try {Log.i("BtToSocketBase","Close localHostSocket");
-                tmpLHSoc.close();} catch (IOException e) {
-                Log.i("BtToSocketBase","Close error : " + e.toString());
+        synchronized (mDeflaterLock) {
+            if (mDeflater != null) {
+                mDeflater.end();
+                mDeflater = null;
             }
         }
+
+        if (mmInStream != null) {
+            try {mmInStream.close();} catch (IOException e) {RelayLog.i("BtToSocketBase","Close error : " + e.toString());}
+        }
+
+        if (mmOutStream != null) {
+            try {mmOutStream.close();} catch (IOException e) {RelayLog.i("BtToSocketBase","Close error : " + e.toString());}
+        }
+
+        if (mmSocket != null) {
+            try {mmSocket.Close();} catch (IOException e) {RelayLog.i("BtToSocketBase","Close error : " + e.toString());}
+        }
+    }
+
+    protected  void CloseSocketAndStreams() {
+        // closing the channels also cancels their registration with the relay selector
+        for (RelayStream stream : mStreams.values()) {
+            stream.Close();
+        }
     }
     public void SetIdAddressAndName(String peerId,String peerName,String peerAddress) {
         mPeerId = peerId;
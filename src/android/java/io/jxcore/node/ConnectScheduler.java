@@ -0,0 +1,258 @@
+package io.jxcore.node;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Accepts any number of Connect requests, and feeds them to the connector with limited parallelism.
+ *
+ * Each request keeps the callbacks of its callers, so Connected/ConnectionFailed can be routed by
+ * peer id to the right caller. Connect calls for a peer that is already queued or connecting are
+ * attached to the existing request instead of starting a new attempt.
+ */
+class ConnectScheduler {
+
+    interface Connector {
+        // called without holding the scheduler's lock, the outcome of a started attempt may be reported before it returns
+        StartResult StartConnect(String peerId);
+    }
+
+    // what the connector did with an attempt: started it, could not start it now, or failed it with an error
+    static final class StartResult {
+        public static final StartResult STARTED = new StartResult(false, null);
+        public static final StartResult BUSY = new StartResult(true, null);
+
+        public final boolean busy;
+        public final String error;
+
+        private StartResult(boolean isBusy, String errorText) {
+            busy = isBusy;
+            error = errorText;
+        }
+
+        public static StartResult Failed(String error) {
+            return new StartResult(false, error);
+        }
+    }
+
+    public static final int DEFAULT_PARALLELISM = 1;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+    private static final long BUSY_RETRY_MILLIS = 500;
+
+    static class ConnectRequest {
+        public final String peerId;
+        private final List<BtConnectorHelper.ConnectStatusCallback> mCallbacks = new ArrayList<BtConnectorHelper.ConnectStatusCallback>();
+        private final long mSubmittedNanos = System.nanoTime();
+        // when the connector was last asked to make the attempt, it may have been busy before that
+        private volatile long mStartedNanos = 0;
+
+        ConnectRequest(String toPeerId) {
+            peerId = toPeerId;
+        }
+
+        public long GetSubmittedNanos() {
+            return mSubmittedNanos;
+        }
+
+        public long GetStartedNanos() {
+            return mStartedNanos;
+        }
+
+        void MarkStarted() {
+            mStartedNanos = System.nanoTime();
+        }
+
+        public void Report(String error, int port) {
+            List<BtConnectorHelper.ConnectStatusCallback> callbacks;
+            synchronized (mCallbacks) {
+                callbacks = new ArrayList<BtConnectorHelper.ConnectStatusCallback>(mCallbacks);
+                mCallbacks.clear();
+            }
+
+            for (BtConnectorHelper.ConnectStatusCallback callback : callbacks) {
+                callback.ConnectionStatusUpdate(error, port);
+            }
+        }
+
+        void AddCallback(BtConnectorHelper.ConnectStatusCallback callback) {
+            synchronized (mCallbacks) {
+                mCallbacks.add(callback);
+            }
+        }
+    }
+
+    private final Connector mConnector;
+    private final LinkedList<ConnectRequest> mQueue = new LinkedList<ConnectRequest>();
+    private final HashMap<String, ConnectRequest> mInFlight = new HashMap<String, ConnectRequest>();
+
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private int mMaxQueued = DEFAULT_MAX_QUEUED;
+    private Handler mHandler = null;
+    private boolean mRetryScheduled = false;
+
+    public ConnectScheduler(Connector connector) {
+        mConnector = connector;
+    }
+
+    public synchronized void SetParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+        Pump();
+    }
+
+    public synchronized void SetMaxQueued(int maxQueued) {
+        mMaxQueued = Math.max(0, maxQueued);
+    }
+
+    // returns error text if the request could not be taken
+    public String Submit(String peerId, BtConnectorHelper.ConnectStatusCallback callback) {
+        synchronized (this) {
+            ConnectRequest existing = mInFlight.get(peerId);
+            if (existing == null) {
+                for (ConnectRequest queued : mQueue) {
+                    if (queued.peerId.equals(peerId)) {
+                        existing = queued;
+                        break;
+                    }
+                }
+            }
+
+            if (existing != null) {
+                existing.AddCallback(callback);
+                return null;
+            }
+
+            if (mQueue.size() >= mMaxQueued) {
+                return "Too many pending connection attempts (" + mQueue.size() + "), please try again later.";
+            }
+
+            ConnectRequest request = new ConnectRequest(peerId);
+            request.AddCallback(callback);
+            mQueue.add(request);
+        }
+
+        Pump();
+        return null;
+    }
+
+    // called when the connector reports the outcome for the peer, frees the slot for the next request
+    public ConnectRequest TakeInFlight(String peerId) {
+        ConnectRequest request;
+        synchronized (this) {
+            request = mInFlight.remove(peerId);
+        }
+
+        Pump();
+        return request;
+    }
+
+    public synchronized boolean IsPending(String peerId) {
+        if (mInFlight.containsKey(peerId)) {
+            return true;
+        }
+        for (ConnectRequest queued : mQueue) {
+            if (queued.peerId.equals(peerId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // queued and in flight, each one becomes a link if it succeeds
+    public synchronized int GetPendingCount() {
+        return mQueue.size() + mInFlight.size();
+    }
+
+    public void CancelAll(String error) {
+        List<ConnectRequest> cancelled = new ArrayList<ConnectRequest>();
+        synchronized (this) {
+            cancelled.addAll(mInFlight.values());
+            cancelled.addAll(mQueue);
+            mInFlight.clear();
+            mQueue.clear();
+        }
+
+        for (ConnectRequest request : cancelled) {
+            request.Report(error, -1);
+        }
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("queued", mQueue.size());
+            stats.put("inFlight", mInFlight.size());
+            stats.put("parallelism", mParallelism);
+            stats.put("maxQueued", mMaxQueued);
+        } catch (JSONException e) {
+            Log.i("ConnectScheduler","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+
+    private void Pump() {
+        while (true) {
+            ConnectRequest request;
+            synchronized (this) {
+                if (mInFlight.size() >= mParallelism || mQueue.isEmpty()) {
+                    return;
+                }
+
+                // in flight before we start, this takes the slot and the outcome may come before StartConnect returns
+                request = mQueue.poll();
+                mInFlight.put(request.peerId, request);
+                request.MarkStarted();
+            }
+
+            StartResult result = mConnector.StartConnect(request.peerId);
+            if (result == StartResult.STARTED) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (mInFlight.get(request.peerId) != request) {
+                    // outcome was already reported, or the request cancelled, while we were starting it
+                    continue;
+                }
+                mInFlight.remove(request.peerId);
+
+                if (result.busy) {
+                    mQueue.addFirst(request);
+                    ScheduleRetry();
+                    return;
+                }
+            }
+
+            request.Report(result.error, -1);
+        }
+    }
+
+    // connector is busy with an attempt that we did not start, so nobody will wake us up when it is done
+    private synchronized void ScheduleRetry() {
+        if (mRetryScheduled || !mInFlight.isEmpty()) {
+            return;
+        }
+
+        if (mHandler == null) {
+            mHandler = new Handler(jxcore.activity.getMainLooper());
+        }
+
+        mRetryScheduled = true;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConnectScheduler.this) {
+                    mRetryScheduled = false;
+                }
+                Pump();
+            }
+        }, BUSY_RETRY_MILLIS);
+    }
+}
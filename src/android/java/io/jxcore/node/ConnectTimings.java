@@ -0,0 +1,79 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Latency histograms for the phases a link goes through before data flows, one set per direction.
+ *
+ * Outgoing: a Connect call waits in the connect queue (QUEUED), the connector makes the Bluetooth connection
+ * (CONNECT, or CONNECT_FAILED), the link binds its local server socket (BIND), the port goes back to JS on
+ * the main looper (REPORT), node.js makes its first connection (ACCEPT) and the connection is handed to
+ * the relay (BRIDGE). TOTAL is from the Connect call to the port report.
+ *
+ * Incoming: the link waits for a free bridge (ADMISSION), connects to our local server (LOCAL_CONNECT)
+ * and hands the connection to the relay (BRIDGE). TOTAL is from the Connected callback to the first bridge.
+ */
+class ConnectTimings {
+
+    enum Phase {
+        QUEUED,
+        CONNECT,
+        CONNECT_FAILED,
+        BIND,
+        REPORT,
+        ACCEPT,
+        ADMISSION,
+        LOCAL_CONNECT,
+        BRIDGE,
+        TOTAL
+    }
+
+    private final LatencyHistogram[] mOutgoing = CreateHistograms();
+    private final LatencyHistogram[] mIncoming = CreateHistograms();
+
+    private static LatencyHistogram[] CreateHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    public void Record(boolean incoming, Phase phase, long nanos) {
+        (incoming ? mIncoming : mOutgoing)[phase.ordinal()].Record(nanos);
+    }
+
+    // records the time from startNanos until now
+    public void RecordSince(boolean incoming, Phase phase, long startNanos) {
+        Record(incoming, phase, System.nanoTime() - startNanos);
+    }
+
+    public void Reset() {
+        for (int i = 0; i < mOutgoing.length; i++) {
+            mOutgoing[i].Reset();
+            mIncoming[i].Reset();
+        }
+    }
+
+    // phases nothing was recorded for are left out
+    public JSONObject ToJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("outgoing", ToJSON(mOutgoing));
+        json.put("incoming", ToJSON(mIncoming));
+        return json;
+    }
+
+    private static JSONObject ToJSON(LatencyHistogram[] histograms) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = histograms[phase.ordinal()];
+            if (histogram.GetCount() > 0) {
+                json.put(phase.name().toLowerCase(Locale.US), histogram.ToJSON());
+            }
+        }
+        return json;
+    }
+}
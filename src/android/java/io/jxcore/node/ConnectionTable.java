@@ -0,0 +1,126 @@
+package io.jxcore.node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Active bridged connections, indexed by the thread id of the connection and by peer id.
+ *
+ * Insert, lookup and removal are O(1) and do not copy the whole table, so tearing down many
+ * connections at once stays cheap. Peer ids are matched ignoring case, same as before.
+ */
+class ConnectionTable<T extends BtToSocketBase> {
+
+    private final ConcurrentHashMap<Long, T> mById = new ConcurrentHashMap<Long, T>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Long, T>> mByPeerId = new ConcurrentHashMap<String, ConcurrentHashMap<Long, T>>();
+
+    // peer id of the socket must be set before it is added
+    public void Add(T socket) {
+        mById.put(socket.getId(), socket);
+
+        String key = PeerKey(socket.GetPeerId());
+        while (true) {
+            ConcurrentHashMap<Long, T> peerSockets = mByPeerId.get(key);
+            if (peerSockets == null) {
+                ConcurrentHashMap<Long, T> newSockets = new ConcurrentHashMap<Long, T>();
+                peerSockets = mByPeerId.putIfAbsent(key, newSockets);
+                if (peerSockets == null) {
+                    peerSockets = newSockets;
+                }
+            }
+
+            peerSockets.put(socket.getId(), socket);
+
+            // the map might have been dropped as empty while we were adding to it
+            if (mByPeerId.get(key) == peerSockets) {
+                return;
+            }
+        }
+    }
+
+    public T Get(long threadId) {
+        return mById.get(threadId);
+    }
+
+    public T Remove(long threadId) {
+        T socket = mById.remove(threadId);
+        if (socket != null) {
+            RemoveFromPeerIndex(socket);
+        }
+        return socket;
+    }
+
+    public boolean Remove(T socket) {
+        return Remove(socket.getId()) != null;
+    }
+
+    // removes one connection of the peer, returns null if there was none
+    public T RemoveAnyForPeer(String peerId) {
+        ConcurrentHashMap<Long, T> peerSockets = mByPeerId.get(PeerKey(peerId));
+        if (peerSockets == null) {
+            return null;
+        }
+
+        for (Long threadId : peerSockets.keySet()) {
+            T socket = Remove(threadId);
+            if (socket != null) {
+                return socket;
+            }
+        }
+        return null;
+    }
+
+    public Collection<T> GetForPeer(String peerId) {
+        ConcurrentHashMap<Long, T> peerSockets = mByPeerId.get(PeerKey(peerId));
+        if (peerSockets == null) {
+            return Collections.emptyList();
+        }
+        return peerSockets.values();
+    }
+
+    public boolean HasPeer(String peerId) {
+        ConcurrentHashMap<Long, T> peerSockets = mByPeerId.get(PeerKey(peerId));
+        return peerSockets != null && !peerSockets.isEmpty();
+    }
+
+    public Collection<T> GetAll() {
+        return mById.values();
+    }
+
+    public int Size() {
+        return mById.size();
+    }
+
+    // empties the table and returns everything that was in it
+    public List<T> RemoveAll() {
+        List<T> removed = new ArrayList<T>();
+        for (Long threadId : mById.keySet()) {
+            T socket = Remove(threadId);
+            if (socket != null) {
+                removed.add(socket);
+            }
+        }
+        return removed;
+    }
+
+    private void RemoveFromPeerIndex(T socket) {
+        String key = PeerKey(socket.GetPeerId());
+        ConcurrentHashMap<Long, T> peerSockets = mByPeerId.get(key);
+        if (peerSockets == null) {
+            return;
+        }
+
+        peerSockets.remove(socket.getId(), socket);
+        if (peerSockets.isEmpty()) {
+            mByPeerId.remove(key, peerSockets);
+        }
+    }
+
+    private static String PeerKey(String peerId) {
+        return peerId == null ? "" : peerId.toLowerCase(Locale.US);
+    }
+}
@@ -64,22 +64,18 @@ class ConnectivityMonitor {
 //        Log.i("ConnectivityMonitor", "isConnected  = " + isConnected);
 //        Log.i("ConnectivityMonitor", "isWiFi  = " + isWiFi);
 
-        activity.runOnUiThread(new Runnable() {
-            public void run() {
-
-            JSONObject tmp = new JSONObject();
-            try {
-                tmp.put(JXcoreExtension.EVENTVALUESTRING_REACHABLE, isConnected);
-                if(isConnected) {
-                    tmp.put(JXcoreExtension.EVENTVALUESTRING_WIFI, isWiFi);
-                }
-            } catch (JSONException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        JSONObject tmp = new JSONObject();
+        try {
+            tmp.put(JXcoreExtension.EVENTVALUESTRING_REACHABLE, isConnected);
+            if(isConnected) {
+                tmp.put(JXcoreExtension.EVENTVALUESTRING_WIFI, isWiFi);
             }
+        } catch (JSONException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
 
-            jxcore.CallJSMethod(JXcoreExtension.EVENTSTRING_NETWORKCHANGED, tmp.toString());
-            }
-        });
+        // dispatcher delivers on the UI thread, and only the latest state if several changes come in a burst
+        NativeEventDispatcher.getInstance().Post(JXcoreExtension.EVENTSTRING_NETWORKCHANGED, tmp);
     }
 }
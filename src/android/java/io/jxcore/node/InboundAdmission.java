@@ -0,0 +1,197 @@
+package io.jxcore.node;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits how many incoming links are bridged to the local server at the same time.
+ *
+ * Incoming links over the limit wait, not yet started, in a bounded queue until a bridge is released.
+ * Peers we also have an outgoing link to are already talking to us, so they wait ahead of the others,
+ * and when the queue is full they take the place of the newest waiting peer without one.
+ */
+class InboundAdmission {
+
+    public static final int DEFAULT_MAX_ACTIVE = 16;
+    public static final int DEFAULT_MAX_QUEUED = 8;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 10000;
+
+    private static class Waiting {
+        final BtToServerSocket socket;
+        final boolean priority;
+        final long queuedNanos = System.nanoTime();
+
+        Waiting(BtToServerSocket socket, boolean priority) {
+            this.socket = socket;
+            this.priority = priority;
+        }
+    }
+
+    private final LinkedList<Waiting> mQueue = new LinkedList<Waiting>();
+
+    private int mMaxActive = DEFAULT_MAX_ACTIVE;
+    private int mMaxQueued = DEFAULT_MAX_QUEUED;
+    private long mQueueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+    private long mAdmitted = 0;
+    private long mQueuedTotal = 0;
+    private long mPriorityQueued = 0;
+    private long mQueueNanos = 0;
+    private long mMaxQueueNanos = 0;
+    private final HashMap<String, Long> mRejections = new HashMap<String, Long>();
+
+    public synchronized void SetMaxActive(int maxActive) {
+        mMaxActive = Math.max(1, maxActive);
+    }
+
+    public synchronized void SetMaxQueued(int maxQueued) {
+        mMaxQueued = Math.max(0, maxQueued);
+    }
+
+    public synchronized void SetQueueTimeoutMillis(long timeoutMillis) {
+        mQueueTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    public synchronized long GetQueueTimeoutMillis() {
+        return mQueueTimeoutMillis;
+    }
+
+    // whether a new link may start right away, nobody is waiting and there is a free bridge
+    public synchronized boolean TryAdmit(int activeCount) {
+        if (!mQueue.isEmpty() || activeCount >= mMaxActive) {
+            return false;
+        }
+        mAdmitted++;
+        return true;
+    }
+
+    // returns the links that could not wait, the new one or the one it displaced, for the caller to stop
+    public synchronized List<BtToServerSocket> Enqueue(BtToServerSocket socket, boolean priority) {
+        List<BtToServerSocket> rejected = new ArrayList<BtToServerSocket>();
+
+        if (mQueue.size() >= mMaxQueued) {
+            Waiting displaced = null;
+            if (priority) {
+                for (Waiting waiting : mQueue) {
+                    if (!waiting.priority) {
+                        displaced = waiting;
+                    }
+                }
+            }
+
+            if (displaced == null) {
+                Reject("queue full");
+                rejected.add(socket);
+                return rejected;
+            }
+
+            mQueue.remove(displaced);
+            AddQueueTime(displaced);
+            Reject("displaced by priority peer");
+            rejected.add(displaced.socket);
+        }
+
+        Waiting waiting = new Waiting(socket, priority);
+        if (priority) {
+            // behind the other priority peers, ahead of everyone else
+            int index = 0;
+            while (index < mQueue.size() && mQueue.get(index).priority) {
+                index++;
+            }
+            mQueue.add(index, waiting);
+            mPriorityQueued++;
+        } else {
+            mQueue.add(waiting);
+        }
+        mQueuedTotal++;
+        return rejected;
+    }
+
+    // the next waiting link if there is a free bridge for it, the caller starts it
+    public synchronized BtToServerSocket PollAdmitted(int activeCount) {
+        if (mQueue.isEmpty() || activeCount >= mMaxActive) {
+            return null;
+        }
+
+        Waiting waiting = mQueue.poll();
+        long waitedNanos = AddQueueTime(waiting);
+        waiting.socket.SetAdmissionWaitMillis(waitedNanos / 1000000);
+        mAdmitted++;
+        return waiting.socket;
+    }
+
+    // links that have waited too long, for the caller to stop
+    public synchronized List<BtToServerSocket> RemoveTimedOut() {
+        List<BtToServerSocket> timedOut = new ArrayList<BtToServerSocket>();
+        long now = System.nanoTime();
+
+        Iterator<Waiting> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            Waiting waiting = iterator.next();
+            if ((now - waiting.queuedNanos) / 1000000 >= mQueueTimeoutMillis) {
+                iterator.remove();
+                AddQueueTime(waiting);
+                Reject("timed out in queue");
+                timedOut.add(waiting.socket);
+            }
+        }
+        return timedOut;
+    }
+
+    public synchronized List<BtToServerSocket> RemoveAll() {
+        List<BtToServerSocket> removed = new ArrayList<BtToServerSocket>();
+        for (Waiting waiting : mQueue) {
+            removed.add(waiting.socket);
+        }
+        mQueue.clear();
+        return removed;
+    }
+
+    private long AddQueueTime(Waiting waiting) {
+        long waitedNanos = System.nanoTime() - waiting.queuedNanos;
+        mQueueNanos += waitedNanos;
+        mMaxQueueNanos = Math.max(mMaxQueueNanos, waitedNanos);
+        return waitedNanos;
+    }
+
+    private void Reject(String reason) {
+        Long count = mRejections.get(reason);
+        mRejections.put(reason, count == null ? 1 : count + 1);
+        RelayLog.i("InboundAdmission", "Incoming link rejected: " + reason);
+    }
+
+    public synchronized JSONObject GetStats(int activeCount) {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("maxActive", mMaxActive);
+            stats.put("active", activeCount);
+            stats.put("maxQueued", mMaxQueued);
+            stats.put("queued", mQueue.size());
+            stats.put("queueTimeoutMillis", mQueueTimeoutMillis);
+            stats.put("admitted", mAdmitted);
+            stats.put("queuedTotal", mQueuedTotal);
+            stats.put("priorityQueued", mPriorityQueued);
+            long dequeued = mQueuedTotal - mQueue.size();
+            stats.put("averageQueueMillis", dequeued <= 0 ? 0 : mQueueNanos / dequeued / 1000000);
+            stats.put("maxQueueMillis", mMaxQueueNanos / 1000000);
+
+            JSONObject rejections = new JSONObject();
+            for (Map.Entry<String, Long> rejection : mRejections.entrySet()) {
+                rejections.put(rejection.getKey(), rejection.getValue());
+            }
+            stats.put("rejections", rejections);
+        } catch (JSONException e) {
+            Log.i("InboundAdmission","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+}
@@ -3,10 +3,13 @@
 package io.jxcore.node;
 
 import io.jxcore.node.jxcore.JXcoreCallback;
+import java.io.IOException;
 import java.util.ArrayList;
 import android.util.Log;
 import android.widget.Toast;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.thaliproject.p2p.btconnectorlib.BTConnector;
 
 public class JXcoreExtension {
@@ -26,11 +29,19 @@ public class JXcoreExtension {
 
     public final static String METHODSTRING_STARTBROADCAST    = "StartBroadcasting";
     public final static String METHODSTRING_STOPBROADCAST     = "StopBroadcasting";
+    public final static String METHODSTRING_STARTPEERSIMULATION = "StartPeerSimulation";
 
     public final static String METHODSTRING_CONNECTTOPEER     = "Connect";
     public final static String METHODSTRING_DISCONNECTPEER    = "Disconnect";
     public final static String METHODSTRING_KILLCONNECTION    = "KillConnection";
 
+    public final static String METHODSTRING_SETRELAYOPTIONS   = "SetRelayOptions";
+    public final static String METHODSTRING_GETCONNECTIONSTATS = "GetConnectionStats";
+    public final static String METHODSTRING_GETCONNECTTIMINGS = "GetConnectTimings";
+    public final static String METHODSTRING_RESETCONNECTTIMINGS = "ResetConnectTimings";
+    public final static String METHODSTRING_DUMPTRACE         = "DumpTrace";
+    public final static String METHODSTRING_SETPEERPRIORITY   = "SetPeerPriority";
+
     public static void LoadExtensions() {
 
       //Jukka's stuff
@@ -86,7 +97,29 @@ public class JXcoreExtension {
               String peerName = params.get(0).toString();
               int port = (Integer) params.get(1);
 
-              BTConnector.WifiBtStatus retVal = mBtConnectorHelper.Start(peerName, port);
+              // optional local transport, "unix" makes node.js listen on the abstract Unix-domain socket
+              // <package>.thali_server_<port>, and Connect returns ids to connect to as <package>.thali_link_<id>
+              // instead of ports, <package> being the app's package name
+              boolean unixDomain = false;
+              if (params.size() > 2 && params.get(2) != null) {
+                  String transport = params.get(2).toString();
+                  if (transport.equals("unix")) {
+                      unixDomain = true;
+                  } else if (!transport.equals("tcp")) {
+                      args.add("Unknown local transport: " + transport + ", use tcp or unix.");
+                      jxcore.CallJSMethod(callbackId, args.toArray());
+                      return;
+                  }
+              }
+
+              BTConnector.WifiBtStatus retVal;
+              try {
+                  retVal = mBtConnectorHelper.Start(peerName, port, unixDomain);
+              } catch (IOException e) {
+                  args.add("Starting relay failed : " + e.toString());
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
 
               String errString = null;
               if (!retVal.isBtOk) {
@@ -107,6 +140,44 @@ public class JXcoreExtension {
           }
       });
 
+      // params: port, and optionally the simulation options as JSON string, see PeerSwarmSimulator.
+      // runs instead of StartBroadcasting, StopBroadcasting ends it and GetConnectionStats reports it.
+      // Debuggable builds only, a release build answers with an error
+      jxcore.RegisterMethod(METHODSTRING_STARTPEERSIMULATION, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              if (params.size() <= 0) {
+                  args.add("Required parameters missing.");
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              if (mBtConnectorHelper.isRunning()) {
+                  args.add("Already running, not re-starting.");
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              int port = (Integer) params.get(0);
+
+              JSONObject options = null;
+              if (params.size() > 1 && params.get(1) != null) {
+                  try {
+                      options = new JSONObject(params.get(1).toString());
+                  } catch (JSONException e) {
+                      args.add("Invalid options : " + e.toString());
+                      jxcore.CallJSMethod(callbackId, args.toArray());
+                      return;
+                  }
+              }
+
+              args.add(mBtConnectorHelper.StartSimulation(port, options));
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
       jxcore.RegisterMethod(METHODSTRING_STOPBROADCAST, new JXcoreCallback() {
           @Override
           public void Receiver(ArrayList<Object> params, String callbackId) {
@@ -167,6 +238,109 @@ public class JXcoreExtension {
 
 
 
+      // takes the options as JSON string, and returns the buffer pool state after applying them
+      jxcore.RegisterMethod(METHODSTRING_SETRELAYOPTIONS, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              if (params.size() <= 0) {
+                  args.add("Required parameters missing");
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              JSONObject options;
+              try {
+                  options = new JSONObject(params.get(0).toString());
+              } catch (JSONException e) {
+                  args.add("Invalid options : " + e.toString());
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              args.add(mBtConnectorHelper.SetRelayOptions(options));
+              args.add(mBtConnectorHelper.GetBufferPoolStats().toString());
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
+      jxcore.RegisterMethod(METHODSTRING_GETCONNECTIONSTATS, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              args.add(null);
+              args.add(mBtConnectorHelper.GetConnectionStats().toString());
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
+      // p50/p90/p99/max of each connect phase per direction as JSON string, see ConnectTimings
+      jxcore.RegisterMethod(METHODSTRING_GETCONNECTTIMINGS, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              args.add(null);
+              args.add(mBtConnectorHelper.GetConnectTimings().toString());
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
+      jxcore.RegisterMethod(METHODSTRING_RESETCONNECTTIMINGS, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              mBtConnectorHelper.ResetConnectTimings();
+              args.add(null);
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
+      // the bridge trace records as JSON array string, oldest first, see RelayTrace
+      jxcore.RegisterMethod(METHODSTRING_DUMPTRACE, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              args.add(null);
+              args.add(mBtConnectorHelper.DumpTrace().toString());
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
+      // params: peer id, weight (1-100), and optionally the rate limit in bytes per second (0 for none)
+      jxcore.RegisterMethod(METHODSTRING_SETPEERPRIORITY, new JXcoreCallback() {
+          @Override
+          public void Receiver(ArrayList<Object> params, String callbackId) {
+
+              ArrayList<Object> args = new ArrayList<Object>();
+              if (params.size() < 2) {
+                  args.add("Required parameters missing");
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              int weight;
+              long rateBytesPerSecond = 0;
+              try {
+                  weight = (int) Double.parseDouble(params.get(1).toString());
+                  if (params.size() > 2 && params.get(2) != null) {
+                      rateBytesPerSecond = (long) Double.parseDouble(params.get(2).toString());
+                  }
+              } catch (NumberFormatException e) {
+                  args.add("Invalid parameters : " + e.toString());
+                  jxcore.CallJSMethod(callbackId, args.toArray());
+                  return;
+              }
+
+              args.add(mBtConnectorHelper.SetPeerPriority(params.get(0).toString(), weight, rateBytesPerSecond));
+              jxcore.CallJSMethod(callbackId, args.toArray());
+          }
+      });
+
       jxcore.RegisterMethod(METHODSTRING_CONNECTTOPEER, new JXcoreCallback() {
           @Override
           public void Receiver(ArrayList<Object> params, String callbackId) {
@@ -0,0 +1,96 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of durations, with one bucket per power of two microseconds.
+ *
+ * Recording is a few atomic updates and never allocates, so it can be done from any thread on the connect path.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are at most twice the real
+ * value, the max is exact.
+ */
+class LatencyHistogram {
+
+    // bucket 0 holds durations below 1 us, bucket i those from 2^(i-1) up to 2^i us,
+    // and the last one everything from about 18 minutes up
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotalNanos = new AtomicLong(0);
+    private final AtomicLong mMaxNanos = new AtomicLong(0);
+
+    public void Record(long nanos) {
+        if (nanos < 0) {
+            // nanoTime is monotonic, but the start may have been taken on a link that was never used
+            return;
+        }
+
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets.incrementAndGet(bucket);
+        mTotalNanos.addAndGet(nanos);
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    // not atomic with recording, a duration recorded at the same time may be half counted
+    public void Reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    public long GetCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    public JSONObject ToJSON() throws JSONException {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        long maxMicros = mMaxNanos.get() / 1000;
+
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("meanMicros", count == 0 ? 0 : mTotalNanos.get() / count / 1000);
+        json.put("p50Micros", Percentile(buckets, count, 50, maxMicros));
+        json.put("p90Micros", Percentile(buckets, count, 90, maxMicros));
+        json.put("p99Micros", Percentile(buckets, count, 99, maxMicros));
+        json.put("maxMicros", maxMicros);
+        return json;
+    }
+
+    private static long Percentile(long[] buckets, long count, int percent, long maxMicros) {
+        if (count == 0) {
+            return 0;
+        }
+
+        // the rank of the wanted duration, rounded up, so p99 of 10 durations is the largest one
+        long rank = (count * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                long upperMicros = i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+                return Math.min(upperMicros, maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+}
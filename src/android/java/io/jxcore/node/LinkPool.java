@@ -0,0 +1,185 @@
+package io.jxcore.node;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outgoing links that JS has disconnected from, kept open for a while in case it connects to the same peer again.
+ *
+ * A parked link keeps its Bluetooth socket and its local server socket, so a Connect that finds one here
+ * gets the same port back without going through BTConnector at all. Only framed links are pooled, and they
+ * take no local connections while parked, see BtToRequestSocket.Park. Links are kept in the order they were
+ * parked, the oldest one goes first when the pool is full, when it has been idle for the idle time,
+ * or when the radio needs the room for other links.
+ */
+class LinkPool {
+
+    public static final int DEFAULT_MAX_IDLE = 0;
+    public static final long DEFAULT_IDLE_TTL_MILLIS = 30000;
+
+    private static class Entry {
+        final BtToRequestSocket link;
+        final long parkedNanos = System.nanoTime();
+
+        Entry(BtToRequestSocket link) {
+            this.link = link;
+        }
+    }
+
+    // keyed by thread id of the link, oldest parked first
+    private final LinkedHashMap<Long, Entry> mIdle = new LinkedHashMap<Long, Entry>();
+
+    private int mMaxIdle = DEFAULT_MAX_IDLE;
+    private long mIdleTtlMillis = DEFAULT_IDLE_TTL_MILLIS;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mParked = 0;
+    private long mExpired = 0;
+    private long mEvicted = 0;
+
+    // 0 switches pooling off, links that no longer fit are returned for the caller to stop
+    public synchronized List<BtToRequestSocket> SetMaxIdle(int maxIdle) {
+        mMaxIdle = Math.max(0, maxIdle);
+        return TrimToMax(mMaxIdle);
+    }
+
+    public synchronized void SetIdleTtlMillis(long idleTtlMillis) {
+        mIdleTtlMillis = Math.max(0, idleTtlMillis);
+    }
+
+    public synchronized long GetIdleTtlMillis() {
+        return mIdleTtlMillis;
+    }
+
+    public synchronized boolean IsEnabled() {
+        return mMaxIdle > 0;
+    }
+
+    // the link must already be parked, see BtToRequestSocket.Park, returns the links that had to make room for it
+    public synchronized List<BtToRequestSocket> Park(BtToRequestSocket link) {
+        List<BtToRequestSocket> evicted = TrimToMax(mMaxIdle - 1);
+        mIdle.put(link.getId(), new Entry(link));
+        mParked++;
+        return evicted;
+    }
+
+    // takes the most recently parked link of the peer out of the pool, null if there is none to reuse
+    public synchronized BtToRequestSocket Take(String peerId) {
+        String key = PeerKey(peerId);
+        Entry found = null;
+        for (Entry entry : mIdle.values()) {
+            if (PeerKey(entry.link.GetPeerId()).equals(key) && entry.link.IsReusable()) {
+                found = entry;
+            }
+        }
+
+        if (found == null) {
+            mMisses++;
+            return null;
+        }
+
+        mIdle.remove(found.link.getId());
+        mHits++;
+        return found.link;
+    }
+
+    // the link went down while parked, returns false if it was not in the pool
+    public synchronized boolean Remove(long threadId) {
+        return mIdle.remove(threadId) != null;
+    }
+
+    public synchronized boolean HasPeer(String peerId) {
+        String key = PeerKey(peerId);
+        for (Entry entry : mIdle.values()) {
+            if (PeerKey(entry.link.GetPeerId()).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int Size() {
+        return mIdle.size();
+    }
+
+    // links parked for longer than the idle time, taken out of the pool for the caller to stop
+    public synchronized List<BtToRequestSocket> RemoveExpired() {
+        List<BtToRequestSocket> expired = new ArrayList<BtToRequestSocket>();
+        long now = System.nanoTime();
+
+        Iterator<Entry> iterator = mIdle.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if ((now - entry.parkedNanos) / 1000000 >= mIdleTtlMillis) {
+                iterator.remove();
+                expired.add(entry.link);
+                mExpired++;
+            }
+        }
+        return expired;
+    }
+
+    // takes the oldest parked link out of the pool so the radio has room for another one, null if empty
+    public synchronized BtToRequestSocket EvictOldest() {
+        Iterator<Entry> iterator = mIdle.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+
+        Entry entry = iterator.next();
+        iterator.remove();
+        mEvicted++;
+        RelayLog.i("LinkPool", "Evicting idle link to " + entry.link.GetPeerName());
+        return entry.link;
+    }
+
+    public synchronized List<BtToRequestSocket> RemoveAll() {
+        List<BtToRequestSocket> removed = new ArrayList<BtToRequestSocket>();
+        for (Entry entry : mIdle.values()) {
+            removed.add(entry.link);
+        }
+        mIdle.clear();
+        return removed;
+    }
+
+    private List<BtToRequestSocket> TrimToMax(int max) {
+        List<BtToRequestSocket> evicted = new ArrayList<BtToRequestSocket>();
+        Iterator<Entry> iterator = mIdle.values().iterator();
+        while (mIdle.size() > Math.max(0, max) && iterator.hasNext()) {
+            evicted.add(iterator.next().link);
+            iterator.remove();
+            mEvicted++;
+        }
+        return evicted;
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("maxIdle", mMaxIdle);
+            stats.put("idleTtlMillis", mIdleTtlMillis);
+            stats.put("idle", mIdle.size());
+            stats.put("hits", mHits);
+            stats.put("misses", mMisses);
+            stats.put("parked", mParked);
+            stats.put("expired", mExpired);
+            stats.put("evicted", mEvicted);
+        } catch (JSONException e) {
+            Log.i("LinkPool","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+
+    private static String PeerKey(String peerId) {
+        return peerId == null ? "" : peerId.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,24 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A connected pair of blocking streams that a relay link, or a Unix-domain local stream, runs over.
+ *
+ * On the device this is a BluetoothSocket (BluetoothLinkTransport) or a LocalSocket (AndroidUnixDomainTransport).
+ * The relay itself only needs the streams, so it also runs on a desktop JVM over in-memory pipes.
+ */
+public interface LinkTransport {
+
+    InputStream GetInputStream() throws IOException;
+
+    OutputStream GetOutputStream() throws IOException;
+
+    // the other end reads -1 once it has read what was written before, reading goes on
+    void ShutdownOutput() throws IOException;
+
+    // must also make a read blocked on another thread return
+    void Close() throws IOException;
+}
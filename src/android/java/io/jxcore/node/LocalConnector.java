@@ -0,0 +1,316 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the connections from incoming links to the local server.
+ *
+ * The loopback address is resolved once instead of looking up "localhost" for every peer, and optionally
+ * a few connections to the server port are made ahead of time and refilled in the background, so an
+ * incoming peer can be bridged without waiting for a connect. The refills block on their connects, so they run
+ * on a thread of their own rather than on the relay engine's. Warm connections that the server has closed,
+ * or that have waited longer than MAX_WARM_AGE_MILLIS, are dropped instead of handed out.
+ *
+ * With the Unix-domain transport node.js listens on the abstract socket UnixServerName(port) instead,
+ * and connects to UnixLinkName(id) for the id it got from Connect in place of a port. The transport puts
+ * the app's package name in front of both. These connections are cheap to make, so they are not kept warm.
+ */
+class LocalConnector {
+
+    public static final int DEFAULT_WARM_SOCKETS = 0;
+    public static final int MAX_WARM_SOCKETS = 16;
+    // well below the idle timeout of the node.js http server, so warm connections are not cut off under us
+    public static final long MAX_WARM_AGE_MILLIS = 30000;
+
+    private static final InetAddress LOOPBACK_ADDRESS = ResolveLoopback();
+    private static final long REFILL_THREAD_IDLE_SECONDS = 30;
+
+    private static class Warm {
+        final SocketChannel channel;
+        final long connectedNanos = System.nanoTime();
+
+        Warm(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final RelayEngine mRelayEngine;
+    // one refill at a time, the thread goes away when there is nothing to refill
+    private final ThreadPoolExecutor mRefiller = new ThreadPoolExecutor(0, 1, REFILL_THREAD_IDLE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final LinkedList<Warm> mWarm = new LinkedList<Warm>();
+    private int mPort = 0;
+    private int mWarmCount = DEFAULT_WARM_SOCKETS;
+    // null for TCP
+    private volatile UnixDomainTransport mUnixDomain = null;
+    private boolean mRefillScheduled = false;
+
+    private long mWarmConnects = 0;
+    private long mWarmSetupNanos = 0;
+    private long mFreshConnects = 0;
+    private long mFreshSetupNanos = 0;
+    private long mMaxSetupNanos = 0;
+    private long mWarmDiscarded = 0;
+
+    LocalConnector(RelayEngine relayEngine) {
+        mRelayEngine = relayEngine;
+    }
+
+    private static InetAddress ResolveLoopback() {
+        try {
+            return InetAddress.getByAddress("localhost", new byte[]{127, 0, 0, 1});
+        } catch (UnknownHostException e) {
+            // only thrown for an address of the wrong length
+            throw new RuntimeException(e);
+        }
+    }
+
+    // abstract Unix-domain socket names used instead of the loopback ports
+    public static String UnixServerName(int port) {
+        return "thali_server_" + port;
+    }
+
+    public static String UnixLinkName(int linkId) {
+        return "thali_link_" + linkId;
+    }
+
+    // null to connect over TCP
+    public void SetUnixDomain(UnixDomainTransport unixDomain) {
+        mUnixDomain = unixDomain;
+        if (unixDomain != null) {
+            Clear();
+        } else {
+            ScheduleRefill();
+        }
+    }
+
+    public boolean IsUnixDomain() {
+        return mUnixDomain != null;
+    }
+
+    public LinkTransport ConnectUnix() throws IOException {
+        long startNanos = System.nanoTime();
+        int port;
+        synchronized (this) {
+            port = mPort;
+        }
+
+        UnixDomainTransport tmpUnixDomain = mUnixDomain;
+        if (tmpUnixDomain == null) {
+            throw new IOException("Unix-domain transport not in use");
+        }
+        LinkTransport socket = tmpUnixDomain.Connect(UnixServerName(port));
+        RecordSetup(false, System.nanoTime() - startNanos);
+        return socket;
+    }
+
+    // warm connections to an earlier port are closed
+    public void SetPort(int port) {
+        boolean changed;
+        synchronized (this) {
+            changed = port != mPort;
+            mPort = port;
+        }
+        if (changed) {
+            Clear();
+        }
+        ScheduleRefill();
+    }
+
+    public void SetWarmCount(int warmCount) {
+        synchronized (this) {
+            mWarmCount = Math.max(0, Math.min(MAX_WARM_SOCKETS, warmCount));
+        }
+        TrimWarm();
+        ScheduleRefill();
+    }
+
+    public SocketChannel Connect() throws IOException {
+        long startNanos = System.nanoTime();
+
+        SocketChannel channel;
+        while ((channel = TakeWarm()) != null) {
+            if (IsUsable(channel)) {
+                RecordSetup(true, System.nanoTime() - startNanos);
+                ScheduleRefill();
+                return channel;
+            }
+            Close(channel);
+        }
+
+        int port;
+        synchronized (this) {
+            port = mPort;
+        }
+        channel = SocketChannel.open(new InetSocketAddress(LOOPBACK_ADDRESS, port));
+        RecordSetup(false, System.nanoTime() - startNanos);
+        ScheduleRefill();
+        return channel;
+    }
+
+    public void Clear() {
+        LinkedList<Warm> removed;
+        synchronized (this) {
+            removed = new LinkedList<Warm>(mWarm);
+            mWarm.clear();
+        }
+        for (Warm warm : removed) {
+            Close(warm.channel);
+        }
+    }
+
+    private SocketChannel TakeWarm() {
+        Warm warm;
+        synchronized (this) {
+            warm = mWarm.poll();
+            if (warm == null) {
+                return null;
+            }
+            if ((System.nanoTime() - warm.connectedNanos) / 1000000 < MAX_WARM_AGE_MILLIS) {
+                return warm.channel;
+            }
+            mWarmDiscarded++;
+        }
+        // too old, the caller tries the next one
+        Close(warm.channel);
+        return TakeWarm();
+    }
+
+    // a closed connection reads -1 right away, and the server should not have sent anything before our request
+    private boolean IsUsable(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            if (channel.read(ByteBuffer.allocate(1)) == 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            RelayLog.w("LocalConnector", "Warm connection failed: " + e.toString());
+        }
+
+        synchronized (this) {
+            mWarmDiscarded++;
+        }
+        return false;
+    }
+
+    private void TrimWarm() {
+        LinkedList<Warm> removed = new LinkedList<Warm>();
+        synchronized (this) {
+            while (mWarm.size() > mWarmCount) {
+                removed.add(mWarm.removeLast());
+            }
+        }
+        for (Warm warm : removed) {
+            Close(warm.channel);
+        }
+    }
+
+    private void ScheduleRefill() {
+        synchronized (this) {
+            if (mRefillScheduled || mWarm.size() >= mWarmCount || mPort == 0 || mUnixDomain != null || !mRelayEngine.isRunning()) {
+                return;
+            }
+            mRefillScheduled = true;
+        }
+
+        try {
+            mRefiller.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Refill();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mRefillScheduled = false;
+            }
+        }
+    }
+
+    private void Refill() {
+        while (true) {
+            int port;
+            synchronized (this) {
+                if (mWarm.size() >= mWarmCount || mPort == 0 || mUnixDomain != null) {
+                    mRefillScheduled = false;
+                    return;
+                }
+                port = mPort;
+            }
+
+            SocketChannel channel;
+            try {
+                channel = SocketChannel.open(new InetSocketAddress(LOOPBACK_ADDRESS, port));
+            } catch (IOException e) {
+                // the server may not be up yet, the next Connect will try again
+                RelayLog.w("LocalConnector", "Warming connection to port " + port + " failed: " + e.toString());
+                synchronized (this) {
+                    mRefillScheduled = false;
+                }
+                return;
+            }
+
+            boolean keep;
+            synchronized (this) {
+                keep = port == mPort && mWarm.size() < mWarmCount;
+                if (keep) {
+                    mWarm.add(new Warm(channel));
+                }
+            }
+            if (!keep) {
+                Close(channel);
+            }
+        }
+    }
+
+    private synchronized void RecordSetup(boolean warm, long nanos) {
+        if (warm) {
+            mWarmConnects++;
+            mWarmSetupNanos += nanos;
+        } else {
+            mFreshConnects++;
+            mFreshSetupNanos += nanos;
+        }
+        mMaxSetupNanos = Math.max(mMaxSetupNanos, nanos);
+    }
+
+    private static void Close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            RelayLog.i("LocalConnector", "Close error : " + e.toString());
+        }
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("port", mPort);
+            stats.put("unixDomain", mUnixDomain != null);
+            stats.put("warmSockets", mWarmCount);
+            stats.put("warmAvailable", mWarm.size());
+            stats.put("warmConnects", mWarmConnects);
+            stats.put("averageWarmSetupMicros", mWarmConnects == 0 ? 0 : mWarmSetupNanos / mWarmConnects / 1000);
+            stats.put("freshConnects", mFreshConnects);
+            stats.put("averageFreshSetupMicros", mFreshConnects == 0 ? 0 : mFreshSetupNanos / mFreshConnects / 1000);
+            stats.put("maxSetupMicros", mMaxSetupNanos / 1000);
+            stats.put("warmDiscarded", mWarmDiscarded);
+        } catch (JSONException e) {
+            RelayLog.w("LocalConnector","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,165 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stand-in for a Bluetooth socket: two connected ends over bounded in-memory pipes.
+ * Used for the links of PeerSwarmSimulator, and by the relay benchmarks.
+ *
+ * A full pipe blocks the writer like a slow radio would, closing an end makes reads of its
+ * own input fail and reads on the other end return -1 once the data written before is consumed.
+ */
+class MemoryLinkTransport implements LinkTransport {
+
+    public static final int DEFAULT_PIPE_CAPACITY = 1024 * 64;
+
+    private static class Pipe {
+        private final byte[] mRing;
+        private int mReadPos = 0;
+        private int mCount = 0;
+        private boolean mWriterClosed = false;
+        private boolean mReaderClosed = false;
+
+        Pipe(int capacity) {
+            mRing = new byte[capacity];
+        }
+
+        synchronized int Read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (mCount == 0) {
+                if (mReaderClosed) {
+                    throw new IOException("pipe closed");
+                }
+                if (mWriterClosed) {
+                    return -1;
+                }
+                Await();
+            }
+            if (mReaderClosed) {
+                throw new IOException("pipe closed");
+            }
+
+            int n = Math.min(length, mCount);
+            int first = Math.min(n, mRing.length - mReadPos);
+            System.arraycopy(mRing, mReadPos, buffer, offset, first);
+            System.arraycopy(mRing, 0, buffer, offset + first, n - first);
+            mReadPos = (mReadPos + n) % mRing.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void Write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mRing.length && !mReaderClosed && !mWriterClosed) {
+                    Await();
+                }
+                if (mReaderClosed || mWriterClosed) {
+                    throw new IOException("pipe closed");
+                }
+
+                int writePos = (mReadPos + mCount) % mRing.length;
+                int n = Math.min(length, Math.min(mRing.length - mCount, mRing.length - writePos));
+                System.arraycopy(buffer, offset, mRing, writePos, n);
+                mCount += n;
+                offset += n;
+                length -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void CloseWriter() {
+            mWriterClosed = true;
+            notifyAll();
+        }
+
+        synchronized void CloseReader() {
+            mReaderClosed = true;
+            notifyAll();
+        }
+
+        private void Await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+
+    private final Pipe mIn;
+    private final Pipe mOut;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return mIn.Read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mIn.CloseReader();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mOut.Write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mOut.CloseWriter();
+        }
+    };
+
+    private MemoryLinkTransport(Pipe in, Pipe out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    // the two ends of one link, what is written to one is read from the other
+    public static MemoryLinkTransport[] CreatePair(int pipeCapacity) {
+        Pipe aToB = new Pipe(pipeCapacity);
+        Pipe bToA = new Pipe(pipeCapacity);
+        return new MemoryLinkTransport[]{new MemoryLinkTransport(bToA, aToB), new MemoryLinkTransport(aToB, bToA)};
+    }
+
+    @Override
+    public InputStream GetInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream GetOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public void ShutdownOutput() {
+        mOut.CloseWriter();
+    }
+
+    @Override
+    public void Close() {
+        mIn.CloseReader();
+        mOut.CloseWriter();
+    }
+}
@@ -0,0 +1,214 @@
+package io.jxcore.node;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Queues events going from the native layer to JS, merges consecutive events of the same name, and
+ * delivers them from the main looper at most once per flush interval.
+ *
+ * Events are delivered in the order they were posted, only a run of events with the same name is merged
+ * into one batch, so e.g. a networkChanged posted between two peerAvailabilityChanged still comes between them.
+ * An isolated event goes out right away, a burst is held back until the interval has passed
+ * since the previous flush, so no event waits longer than one interval.
+ */
+class NativeEventDispatcher {
+
+    enum MergePolicy {
+        // only the latest payload of a run is delivered, e.g. networkChanged
+        LAST_WRITER_WINS,
+        // a run is collected into one array, latest entry per peer wins, e.g. peerAvailabilityChanged
+        UNION_BY_PEER,
+        // each payload is delivered as its own call, identical payloads within a run are dropped
+        DEDUPLICATE
+    }
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+    private static NativeEventDispatcher mInstance = null;
+
+    // a run of consecutive events with one name, payloads keyed by whatever the merge policy uses for identity
+    private static class Batch {
+        final String eventName;
+        final LinkedHashMap<String, JSONObject> payloads = new LinkedHashMap<String, JSONObject>();
+
+        Batch(String name) {
+            eventName = name;
+        }
+    }
+
+    private final HashMap<String, MergePolicy> mPolicies = new HashMap<String, MergePolicy>();
+    // in the order the events were posted
+    private final LinkedList<Batch> mPending = new LinkedList<Batch>();
+
+    private Handler mHandler = null;
+    private boolean mFlushScheduled = false;
+    private long mLastFlushMillis = 0;
+    private long mFlushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+    private long mPostedCount = 0;
+    private long mMergedCount = 0;
+    private long mDeliveredCount = 0;
+    private long mJsCallCount = 0;
+    private long mJsCallNanos = 0;
+
+    public static synchronized NativeEventDispatcher getInstance() {
+        if (mInstance == null) {
+            mInstance = new NativeEventDispatcher();
+        }
+        return mInstance;
+    }
+
+    private NativeEventDispatcher() {
+        mPolicies.put(JXcoreExtension.EVENTSTRING_NETWORKCHANGED, MergePolicy.LAST_WRITER_WINS);
+        mPolicies.put(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, MergePolicy.UNION_BY_PEER);
+        mPolicies.put(JXcoreExtension.EVENTSTRING_CONNECTIONERROR, MergePolicy.DEDUPLICATE);
+    }
+
+    public synchronized void SetFlushIntervalMillis(long intervalMillis) {
+        mFlushIntervalMillis = intervalMillis;
+    }
+
+    public void Post(String eventName, JSONObject payload) {
+        synchronized (this) {
+            MergePolicy policy = mPolicies.get(eventName);
+            if (policy == null) {
+                policy = MergePolicy.DEDUPLICATE;
+            }
+
+            String key;
+            switch (policy) {
+                case LAST_WRITER_WINS:
+                    key = eventName;
+                    break;
+                case UNION_BY_PEER:
+                    key = payload.optString(JXcoreExtension.EVENTVALUESTRING_PEERID, "");
+                    break;
+                default:
+                    key = payload.toString();
+                    break;
+            }
+
+            Batch batch = mPending.peekLast();
+            if (batch == null || !batch.eventName.equals(eventName)) {
+                batch = new Batch(eventName);
+                mPending.add(batch);
+            }
+
+            mPostedCount++;
+            // removing first keeps the batch in the order of the latest updates
+            if (batch.payloads.remove(key) != null) {
+                mMergedCount++;
+            }
+            batch.payloads.put(key, payload);
+
+            ScheduleFlush();
+        }
+    }
+
+    // must be called with the lock held
+    private void ScheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+
+        if (mHandler == null) {
+            mHandler = new Handler(jxcore.activity.getMainLooper());
+        }
+
+        long delay = Math.max(0, mLastFlushMillis + mFlushIntervalMillis - NowMillis());
+        mFlushScheduled = true;
+        mHandler.postDelayed(mFlushTask, delay);
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            Flush();
+        }
+    };
+
+    private void Flush() {
+        List<String> eventNames = new ArrayList<String>();
+        List<String> payloads = new ArrayList<String>();
+
+        synchronized (this) {
+            mFlushScheduled = false;
+            mLastFlushMillis = NowMillis();
+
+            for (Batch batch : mPending) {
+                if (mPolicies.get(batch.eventName) == MergePolicy.UNION_BY_PEER) {
+                    JSONArray jsonArray = new JSONArray();
+                    for (JSONObject payload : batch.payloads.values()) {
+                        jsonArray.put(payload);
+                    }
+                    eventNames.add(batch.eventName);
+                    payloads.add(jsonArray.toString());
+                } else {
+                    for (JSONObject payload : batch.payloads.values()) {
+                        eventNames.add(batch.eventName);
+                        payloads.add(payload.toString());
+                    }
+                }
+            }
+            mPending.clear();
+            mDeliveredCount += payloads.size();
+        }
+
+        // JS is called without holding the lock, so posting from JS callbacks can't deadlock
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < payloads.size(); i++) {
+            jxcore.CallJSMethod(eventNames.get(i), payloads.get(i));
+        }
+
+        synchronized (this) {
+            mJsCallCount += payloads.size();
+            mJsCallNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    public synchronized long GetPostedCount() {
+        return mPostedCount;
+    }
+
+    public synchronized long GetDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    public synchronized long GetJsCallCount() {
+        return mJsCallCount;
+    }
+
+    public synchronized long GetJsCallNanos() {
+        return mJsCallNanos;
+    }
+
+    public synchronized JSONObject GetStats() {
+        JSONObject stats = new JSONObject();
+        try {
+            stats.put("posted", mPostedCount);
+            stats.put("merged", mMergedCount);
+            stats.put("delivered", mDeliveredCount);
+            stats.put("jsCalls", mJsCallCount);
+            stats.put("jsCallMillis", mJsCallNanos / 1000000);
+            stats.put("flushIntervalMillis", mFlushIntervalMillis);
+        } catch (JSONException e) {
+            Log.i("NativeEventDispatcher","JSONException : " + e.toString());
+        }
+        return stats;
+    }
+
+    private static long NowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,158 @@
+package io.jxcore.node;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.thaliproject.p2p.btconnectorlib.ServiceItem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Expires peers that have not been seen for a while, and reports availability changes to JS
+ * as one batched peerAvailabilityChanged array per interval instead of one event per change.
+ *
+ * A peer that goes available and unavailable again within one interval is never reported,
+ * since JS would only see it flicker.
+ */
+class PeerAvailabilityMonitor {
+
+    interface PeerInUseCheck {
+        boolean IsPeerInUse(String peerId);
+    }
+
+    public static final long DEFAULT_EXPIRY_MILLIS = 3 * 60 * 1000;
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private final PeerRegistry mPeerRegistry;
+    private final PeerInUseCheck mInUseCheck;
+
+    // changes not yet sent to JS, keyed by peer id, in the order they happened
+    private final LinkedHashMap<String, PendingChange> mPendingChanges = new LinkedHashMap<String, PendingChange>();
+
+    private volatile long mExpiryMillis = DEFAULT_EXPIRY_MILLIS;
+    private volatile long mIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    private Handler mHandler = null;
+
+    private static class PendingChange {
+        final ServiceItem item;
+        final boolean available;
+
+        PendingChange(ServiceItem serviceItem, boolean isAvailable) {
+            item = serviceItem;
+            available = isAvailable;
+        }
+    }
+
+    public PeerAvailabilityMonitor(PeerRegistry peerRegistry, PeerInUseCheck inUseCheck) {
+        mPeerRegistry = peerRegistry;
+        mInUseCheck = inUseCheck;
+    }
+
+    public synchronized void Start() {
+        Stop();
+        mHandler = new Handler(jxcore.activity.getMainLooper());
+        mHandler.postDelayed(mTick, mIntervalMillis);
+    }
+
+    public synchronized void Stop() {
+        Handler tmpHandler = mHandler;
+        mHandler = null;
+        if (tmpHandler != null) {
+            tmpHandler.removeCallbacks(mTick);
+        }
+    }
+
+    public void SetExpiryMillis(long expiryMillis) {
+        mExpiryMillis = expiryMillis;
+    }
+
+    public void SetIntervalMillis(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    public void PeerAvailable(ServiceItem item) {
+        QueueChange(item, true);
+    }
+
+    private void QueueChange(ServiceItem item, boolean available) {
+        synchronized (mPendingChanges) {
+            PendingChange pending = mPendingChanges.remove(item.peerId);
+            if (pending != null && pending.available != available) {
+                // the earlier change was never reported, so these two cancel each other out
+                return;
+            }
+            mPendingChanges.put(item.peerId, new PendingChange(item, available));
+        }
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            ExpireStalePeers();
+            Flush();
+
+            synchronized (PeerAvailabilityMonitor.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(mTick, mIntervalMillis);
+                }
+            }
+        }
+    };
+
+    private void ExpireStalePeers() {
+        long now = PeerRegistry.NowMillis();
+        long cutoff = now - mExpiryMillis;
+
+        for (PeerRegistry.Entry entry : mPeerRegistry.GetAll()) {
+            if (entry.GetLastSeenMillis() >= cutoff) {
+                continue;
+            }
+
+            // discovery may be paused while we are connected, so peers with live connections stay
+            if (mInUseCheck.IsPeerInUse(entry.item.peerId)) {
+                entry.MarkSeen(now);
+                continue;
+            }
+
+            if (mPeerRegistry.Remove(entry.item.peerId) != null) {
+                RelayLog.i("PeerAvailabilityMonitor", "Peer expired : " + entry.item.peerName);
+                QueueChange(entry.item, false);
+            }
+        }
+    }
+
+    private void Flush() {
+        List<PendingChange> changes;
+        synchronized (mPendingChanges) {
+            if (mPendingChanges.isEmpty()) {
+                return;
+            }
+            changes = new ArrayList<PendingChange>(mPendingChanges.values());
+            mPendingChanges.clear();
+        }
+
+        // the dispatcher delivers these as one peerAvailabilityChanged array
+        NativeEventDispatcher dispatcher = NativeEventDispatcher.getInstance();
+        for (PendingChange change : changes) {
+            dispatcher.Post(JXcoreExtension.EVENTSTRING_PEERAVAILABILITY, GetAvailabilityStatus(change.item, change.available));
+        }
+    }
+
+    static JSONObject GetAvailabilityStatus(ServiceItem item, boolean available) {
+
+        JSONObject returnJsonObj = new JSONObject();
+        try {
+            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERID, item.peerId);
+            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERNAME, item.peerName);
+            returnJsonObj.put(JXcoreExtension.EVENTVALUESTRING_PEERAVAILABLE, available);
+        } catch (JSONException e) {
+            Log.i("PeerAvailabilityMonitor","JSONException : " + e.toString());
+        }
+        return returnJsonObj;
+    }
+}
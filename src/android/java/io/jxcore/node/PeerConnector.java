@@ -0,0 +1,15 @@
+package io.jxcore.node;
+
+import org.thaliproject.p2p.btconnectorlib.BTConnector;
+import org.thaliproject.p2p.btconnectorlib.ServiceItem;
+
+/**
+ * The part of BTConnector that BtConnectorHelper drives, so PeerSwarmSimulator can take its place.
+ * Either one reports back through the BTConnector.Callback and ConnectSelector methods of the helper.
+ */
+interface PeerConnector {
+
+    BTConnector.TryConnectReturnValues TryConnect(ServiceItem selectedDevice);
+
+    void Stop();
+}
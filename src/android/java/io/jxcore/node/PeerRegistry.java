@@ -0,0 +1,121 @@
+package io.jxcore.node;
+
+import org.thaliproject.p2p.btconnectorlib.ServiceItem;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Discovered peers, indexed both by peer id and by Bluetooth device address.
+ *
+ * Lookups and updates are O(1) and never copy the whole collection, and each entry remembers
+ * when the peer was last seen, so stale peers can be found without scanning discovery results.
+ */
+class PeerRegistry {
+
+    static class Entry {
+        public final ServiceItem item;
+        private volatile long mLastSeenMillis;
+
+        Entry(ServiceItem serviceItem, long nowMillis) {
+            item = serviceItem;
+            mLastSeenMillis = nowMillis;
+        }
+
+        public long GetLastSeenMillis() {
+            return mLastSeenMillis;
+        }
+
+        public void MarkSeen(long nowMillis) {
+            mLastSeenMillis = nowMillis;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mByPeerId = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, Entry> mByAddress = new ConcurrentHashMap<String, Entry>();
+
+    public Entry GetByPeerId(String peerId) {
+        return peerId == null ? null : mByPeerId.get(peerId);
+    }
+
+    public Entry GetByAddress(String deviceAddress) {
+        String key = AddressKey(deviceAddress);
+        return key == null ? null : mByAddress.get(key);
+    }
+
+    // Adds the peer, or refreshes its last seen time if we already know it by either key.
+    // Returns true only if the peer was not known before.
+    public boolean PeerSeen(ServiceItem item) {
+        long now = NowMillis();
+
+        Entry existing = GetByAddress(item.deviceAddress);
+        if (existing == null) {
+            existing = GetByPeerId(item.peerId);
+            if (existing != null && AddressKey(item.deviceAddress) != null) {
+                // known peer at a new address, the entry is replaced so the old address no longer finds it
+                Entry moved = new Entry(item, now);
+                String oldKey = AddressKey(existing.item.deviceAddress);
+                if (oldKey != null) {
+                    mByAddress.remove(oldKey, existing);
+                }
+                mByAddress.put(AddressKey(item.deviceAddress), moved);
+                mByPeerId.replace(item.peerId, existing, moved);
+                return false;
+            }
+        }
+
+        if (existing != null) {
+            existing.mLastSeenMillis = now;
+            return false;
+        }
+
+        Entry entry = new Entry(item, now);
+        String addressKey = AddressKey(item.deviceAddress);
+        if (addressKey != null && mByAddress.putIfAbsent(addressKey, entry) != null) {
+            // someone got there first, count it as seen
+            return false;
+        }
+
+        if (item.peerId != null) {
+            mByPeerId.put(item.peerId, entry);
+        }
+        return true;
+    }
+
+    public Entry Remove(String peerId) {
+        Entry entry = GetByPeerId(peerId);
+        if (entry == null) {
+            return null;
+        }
+
+        mByPeerId.remove(peerId, entry);
+        String addressKey = AddressKey(entry.item.deviceAddress);
+        if (addressKey != null) {
+            mByAddress.remove(addressKey, entry);
+        }
+        return entry;
+    }
+
+    public Collection<Entry> GetAll() {
+        return mByPeerId.values();
+    }
+
+    public int Size() {
+        return mByPeerId.size();
+    }
+
+    public void Clear() {
+        mByPeerId.clear();
+        mByAddress.clear();
+    }
+
+    static long NowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // peers found via incoming connection may not have device address set
+    private static String AddressKey(String deviceAddress) {
+        return deviceAddress == null || deviceAddress.length() == 0 ? null : deviceAddress.toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,590 @@
+package io.jxcore.node;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.thaliproject.p2p.btconnectorlib.BTConnector;
+import org.thaliproject.p2p.btconnectorlib.ServiceItem;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Plays the part of BTConnector for BtConnectorHelper with a swarm of simulated peers, so the discovery
+ * and connection bookkeeping can be loaded with hundreds of peers without any radio.
+ *
+ * The visible peers are reported one at a time with PeerDiscovered, and all together with CurrentPeersList
+ * every round, when a share of them is also replaced by new peers (churn). Connects made through the helper
+ * succeed, or fail with ConnectionFailed, after the connect delay. Optionally the simulator also makes
+ * connects of its own and gets incoming links, which are released again after the hold time.
+ *
+ * Links run over in-memory pipes, the simulated remote end of an outgoing link relays to our own local server.
+ * Like the real connector, all callbacks are made on the main looper. GetStats reports the time the callbacks
+ * took, the events delivered to JS, and how the helper's tables and the heap grew during the simulation.
+ */
+class PeerSwarmSimulator implements PeerConnector {
+
+    public static final int DEFAULT_PEERS = 100;
+    public static final int MAX_PEERS = 10000;
+    public static final long DEFAULT_DISCOVERY_INTERVAL_MILLIS = 50;
+    public static final long DEFAULT_PEERS_LIST_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_CHURN_PERCENT = 10;
+    public static final long DEFAULT_CONNECT_DELAY_MILLIS = 200;
+    public static final int DEFAULT_CONNECT_FAILURE_PERCENT = 10;
+    public static final long DEFAULT_LINK_HOLD_MILLIS = 10000;
+
+    private final BtConnectorHelper mHelper;
+    private final RelayEngine mRelayEngine;
+    private final LocalConnector mLocalConnector;
+
+    // options, see Configure
+    private int mPeers = DEFAULT_PEERS;
+    private long mDiscoveryIntervalMillis = DEFAULT_DISCOVERY_INTERVAL_MILLIS;
+    private long mPeersListIntervalMillis = DEFAULT_PEERS_LIST_INTERVAL_MILLIS;
+    private int mChurnPercent = DEFAULT_CHURN_PERCENT;
+    private long mConnectDelayMillis = DEFAULT_CONNECT_DELAY_MILLIS;
+    private int mConnectFailurePercent = DEFAULT_CONNECT_FAILURE_PERCENT;
+    // 0 means the simulator does not make connects of its own, or does not get incoming links
+    private long mConnectIntervalMillis = 0;
+    private long mIncomingIntervalMillis = 0;
+    private long mLinkHoldMillis = DEFAULT_LINK_HOLD_MILLIS;
+    private long mSeed = 1;
+
+    private Handler mHandler = null;
+    private Random mRandom = null;
+    private boolean mRunning = false;
+    private long mStartNanos = 0;
+    private long mStopNanos = 0;
+
+    // peer id -> peer, in the order they became visible
+    private final LinkedHashMap<String, ServiceItem> mVisible = new LinkedHashMap<String, ServiceItem>();
+    private int mNextPeerNumber = 0;
+    private int mDiscoveryIndex = 0;
+    // like the real connector, one connect attempt at a time
+    private ServiceItem mConnecting = null;
+    // the simulated remote ends of our links
+    private final List<BtToSocketBase> mRemoteLinks = new ArrayList<BtToSocketBase>();
+
+    private long mPeersCreated = 0;
+    private long mPeersChurned = 0;
+    private long mConnectAttempts = 0;
+    private long mConnectsSucceeded = 0;
+    private long mConnectsFailed = 0;
+    private long mConnectorBusy = 0;
+    private long mOwnConnects = 0;
+    private long mOwnConnectErrors = 0;
+    private long mIncomingLinks = 0;
+
+    // callback name -> count, total and max nanos
+    private final LinkedHashMap<String, long[]> mCallbackTimes = new LinkedHashMap<String, long[]>();
+
+    private long mEventsPostedAtStart = 0;
+    private long mEventsDeliveredAtStart = 0;
+    private long mJsCallsAtStart = 0;
+    private long mJsCallNanosAtStart = 0;
+
+    private int mPeakKnownPeers = 0;
+    private int mPeakOutgoingLinks = 0;
+    private int mPeakIncomingLinks = 0;
+    private long mHeapAtStart = 0;
+    private long mPeakHeap = 0;
+
+    PeerSwarmSimulator(BtConnectorHelper helper, RelayEngine relayEngine, LocalConnector localConnector) {
+        mHelper = helper;
+        mRelayEngine = relayEngine;
+        mLocalConnector = localConnector;
+    }
+
+    // returns error text for an invalid option, options not given keep their defaults
+    public synchronized String Configure(JSONObject options) {
+        if (options == null) {
+            return null;
+        }
+
+        if (options.has("peers")) {
+            mPeers = options.optInt("peers", -1);
+            if (mPeers < 1 || mPeers > MAX_PEERS) {
+                return "peers must be between 1 and " + MAX_PEERS;
+            }
+        }
+
+        if (options.has("discoveryIntervalMillis")) {
+            mDiscoveryIntervalMillis = options.optLong("discoveryIntervalMillis", -1);
+            if (mDiscoveryIntervalMillis < 1) {
+                return "discoveryIntervalMillis must be at least 1";
+            }
+        }
+
+        if (options.has("peersListIntervalMillis")) {
+            mPeersListIntervalMillis = options.optLong("peersListIntervalMillis", -1);
+            if (mPeersListIntervalMillis < 1) {
+                return "peersListIntervalMillis must be at least 1";
+            }
+        }
+
+        if (options.has("churnPercent")) {
+            mChurnPercent = options.optInt("churnPercent", -1);
+            if (mChurnPercent < 0 || mChurnPercent > 100) {
+                return "churnPercent must be between 0 and 100";
+            }
+        }
+
+        if (options.has("connectDelayMillis")) {
+            mConnectDelayMillis = options.optLong("connectDelayMillis", -1);
+            if (mConnectDelayMillis < 0) {
+                return "connectDelayMillis must not be negative";
+            }
+        }
+
+        if (options.has("connectFailurePercent")) {
+            mConnectFailurePercent = options.optInt("connectFailurePercent", -1);
+            if (mConnectFailurePercent < 0 || mConnectFailurePercent > 100) {
+                return "connectFailurePercent must be between 0 and 100";
+            }
+        }
+
+        if (options.has("connectIntervalMillis")) {
+            mConnectIntervalMillis = options.optLong("connectIntervalMillis", -1);
+            if (mConnectIntervalMillis < 0) {
+                return "connectIntervalMillis must not be negative";
+            }
+        }
+
+        if (options.has("incomingIntervalMillis")) {
+            mIncomingIntervalMillis = options.optLong("incomingIntervalMillis", -1);
+            if (mIncomingIntervalMillis < 0) {
+                return "incomingIntervalMillis must not be negative";
+            }
+        }
+
+        if (options.has("linkHoldMillis")) {
+            mLinkHoldMillis = options.optLong("linkHoldMillis", -1);
+            if (mLinkHoldMillis < 0) {
+                return "linkHoldMillis must not be negative";
+            }
+        }
+
+        if (options.has("seed")) {
+            mSeed = options.optLong("seed", 1);
+        }
+        return null;
+    }
+
+    public void Start() {
+        synchronized (this) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mHandler = new Handler(jxcore.activity.getMainLooper());
+            mRandom = new Random(mSeed);
+            mStartNanos = System.nanoTime();
+
+            NativeEventDispatcher dispatcher = NativeEventDispatcher.getInstance();
+            mEventsPostedAtStart = dispatcher.GetPostedCount();
+            mEventsDeliveredAtStart = dispatcher.GetDeliveredCount();
+            mJsCallsAtStart = dispatcher.GetJsCallCount();
+            mJsCallNanosAtStart = dispatcher.GetJsCallNanos();
+            mHeapAtStart = UsedHeap();
+            mPeakHeap = mHeapAtStart;
+
+            while (mVisible.size() < mPeers) {
+                AddPeer();
+            }
+        }
+        Log.i("PeerSwarmSimulator", "Simulating " + mPeers + " peers");
+
+        mHandler.post(mDiscoveryTask);
+        mHandler.postDelayed(mPeersListTask, mPeersListIntervalMillis);
+        if (mConnectIntervalMillis > 0) {
+            mHandler.postDelayed(mConnectTask, mConnectIntervalMillis);
+        }
+        if (mIncomingIntervalMillis > 0) {
+            mHandler.postDelayed(mIncomingTask, mIncomingIntervalMillis);
+        }
+    }
+
+    @Override
+    public void Stop() {
+        List<BtToSocketBase> remoteLinks;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            mStopNanos = System.nanoTime();
+            mConnecting = null;
+            mHandler.removeCallbacksAndMessages(null);
+
+            remoteLinks = new ArrayList<BtToSocketBase>(mRemoteLinks);
+            mRemoteLinks.clear();
+        }
+
+        for (BtToSocketBase link : remoteLinks) {
+            link.Stop();
+        }
+        Log.i("PeerSwarmSimulator", "Simulation stopped");
+    }
+
+    //called by the helper, from any thread
+    @Override
+    public BTConnector.TryConnectReturnValues TryConnect(final ServiceItem selectedDevice) {
+        synchronized (this) {
+            if (selectedDevice == null) {
+                return BTConnector.TryConnectReturnValues.NoSelectedDevice;
+            }
+            if (!mRunning) {
+                return BTConnector.TryConnectReturnValues.BTDeviceFetchFailed;
+            }
+            if (mConnecting != null) {
+                mConnectorBusy++;
+                return BTConnector.TryConnectReturnValues.AlreadyAttemptingToConnect;
+            }
+
+            mConnecting = selectedDevice;
+            mConnectAttempts++;
+        }
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                FinishConnect(selectedDevice);
+            }
+        }, mConnectDelayMillis);
+        return BTConnector.TryConnectReturnValues.Connecting;
+    }
+
+    private void FinishConnect(ServiceItem device) {
+        boolean succeeds;
+        synchronized (this) {
+            if (!mRunning || mConnecting != device) {
+                return;
+            }
+            mConnecting = null;
+
+            // a peer that churned away while we were connecting is not there to answer
+            succeeds = mVisible.containsKey(device.peerId) && mRandom.nextInt(100) >= mConnectFailurePercent;
+        }
+
+        MemoryLinkTransport[] link = null;
+        BtToServerSocket remote = null;
+        if (succeeds) {
+            link = MemoryLinkTransport.CreatePair(MemoryLinkTransport.DEFAULT_PIPE_CAPACITY);
+            try {
+                remote = new BtToServerSocket(link[1], mRemoteDisconnected, mRelayEngine);
+            } catch (IOException e) {
+                // the attempt fails like any other, so the helper frees its slot and answers the caller
+                Log.w("PeerSwarmSimulator", "Creating remote end failed : " + e.toString());
+                succeeds = false;
+            }
+        }
+
+        synchronized (this) {
+            if (succeeds) {
+                mConnectsSucceeded++;
+            } else {
+                mConnectsFailed++;
+            }
+        }
+
+        if (!succeeds) {
+            long startNanos = System.nanoTime();
+            mHelper.ConnectionFailed(device.peerId, device.peerName, device.peerAddress);
+            RecordCallback("ConnectionFailed", startNanos);
+            return;
+        }
+
+        remote.SetIdAddressAndName(device.peerId, device.peerName, device.peerAddress);
+        remote.setLocalConnector(mLocalConnector);
+        AddRemoteLink(remote);
+        remote.start();
+
+        long startNanos = System.nanoTime();
+        mHelper.Connected(link[0], device.peerAddress, false, device.peerId, device.peerName, device.peerAddress);
+        RecordCallback("Connected", startNanos);
+        SampleTables();
+    }
+
+    private final Runnable mDiscoveryTask = new Runnable() {
+        @Override
+        public void run() {
+            ServiceItem item;
+            synchronized (PeerSwarmSimulator.this) {
+                if (!mRunning) {
+                    return;
+                }
+                item = GetVisibleAt(mDiscoveryIndex++);
+            }
+
+            if (item != null) {
+                long startNanos = System.nanoTime();
+                mHelper.PeerDiscovered(item);
+                RecordCallback("PeerDiscovered", startNanos);
+            }
+            mHandler.postDelayed(this, mDiscoveryIntervalMillis);
+        }
+    };
+
+    private final Runnable mPeersListTask = new Runnable() {
+        @Override
+        public void run() {
+            List<ServiceItem> items;
+            synchronized (PeerSwarmSimulator.this) {
+                if (!mRunning) {
+                    return;
+                }
+                Churn();
+                items = new ArrayList<ServiceItem>(mVisible.values());
+            }
+
+            long startNanos = System.nanoTime();
+            mHelper.CurrentPeersList(items);
+            RecordCallback("CurrentPeersList", startNanos);
+            SampleTables();
+            mHandler.postDelayed(this, mPeersListIntervalMillis);
+        }
+    };
+
+    // connects the way the app does with Connect, and disconnects again after the hold time
+    private final Runnable mConnectTask = new Runnable() {
+        @Override
+        public void run() {
+            final ServiceItem item;
+            synchronized (PeerSwarmSimulator.this) {
+                if (!mRunning) {
+                    return;
+                }
+                item = GetVisibleAt(mRandom.nextInt(mVisible.size()));
+                mOwnConnects++;
+            }
+
+            long startNanos = System.nanoTime();
+            mHelper.BeginConnectPeer(item.peerId, new BtConnectorHelper.ConnectStatusCallback() {
+                @Override
+                public void ConnectionStatusUpdate(String Error, int port) {
+                    if (Error != null) {
+                        synchronized (PeerSwarmSimulator.this) {
+                            mOwnConnectErrors++;
+                        }
+                        return;
+                    }
+
+                    mHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            mHelper.Disconnect(item.peerId);
+                        }
+                    }, mLinkHoldMillis);
+                }
+            });
+            RecordCallback("Connect", startNanos);
+            mHandler.postDelayed(this, mConnectIntervalMillis);
+        }
+    };
+
+    // a visible peer connects to us, and goes away again after the hold time
+    private final Runnable mIncomingTask = new Runnable() {
+        @Override
+        public void run() {
+            ServiceItem item;
+            synchronized (PeerSwarmSimulator.this) {
+                if (!mRunning) {
+                    return;
+                }
+                item = GetVisibleAt(mRandom.nextInt(mVisible.size()));
+                mIncomingLinks++;
+            }
+
+            MemoryLinkTransport[] link = MemoryLinkTransport.CreatePair(MemoryLinkTransport.DEFAULT_PIPE_CAPACITY);
+            final BtToRequestSocket remote;
+            try {
+                remote = new BtToRequestSocket(link[1], mRemoteDisconnected, null, mRelayEngine);
+            } catch (IOException e) {
+                Log.i("PeerSwarmSimulator", "Creating remote end failed : " + e.toString());
+                return;
+            }
+            remote.SetIdAddressAndName(item.peerId, item.peerName, item.peerAddress);
+            AddRemoteLink(remote);
+            remote.start();
+
+            long startNanos = System.nanoTime();
+            mHelper.Connected(link[0], item.peerAddress, true, item.peerId, item.peerName, item.peerAddress);
+            RecordCallback("Connected", startNanos);
+            SampleTables();
+
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (RemoveRemoteLink(remote)) {
+                        remote.Stop();
+                    }
+                }
+            }, mLinkHoldMillis);
+            mHandler.postDelayed(this, mIncomingIntervalMillis);
+        }
+    };
+
+    // our end of the link went down, so the simulated peer drops its end too
+    private final BtSocketDisconnectedCallBack mRemoteDisconnected = new BtSocketDisconnectedCallBack() {
+        @Override
+        public void Disconnected(Thread who, String Error) {
+            BtToSocketBase link = (BtToSocketBase) who;
+            if (RemoveRemoteLink(link)) {
+                link.Stop();
+            }
+        }
+    };
+
+    private synchronized void AddRemoteLink(BtToSocketBase link) {
+        mRemoteLinks.add(link);
+    }
+
+    private synchronized boolean RemoveRemoteLink(BtToSocketBase link) {
+        return mRemoteLinks.remove(link);
+    }
+
+    // must be called with the lock held
+    private void AddPeer() {
+        int number = mNextPeerNumber++;
+        String peerId = "simulated-" + number;
+        String address = String.format("02:00:00:%02X:%02X:%02X", (number >> 16) & 0xff, (number >> 8) & 0xff, number & 0xff);
+        mVisible.put(peerId, new ServiceItem(peerId, "Simulated " + number, address, "", "", ""));
+        mPeersCreated++;
+    }
+
+    // must be called with the lock held, replaces the churn share of the visible peers by new ones
+    private void Churn() {
+        int count = mVisible.size() * mChurnPercent / 100;
+        for (int i = 0; i < count; i++) {
+            ServiceItem gone = GetVisibleAt(mRandom.nextInt(mVisible.size()));
+            mVisible.remove(gone.peerId);
+            mPeersChurned++;
+        }
+        while (mVisible.size() < mPeers) {
+            AddPeer();
+        }
+    }
+
+    // must be called with the lock held
+    private ServiceItem GetVisibleAt(int index) {
+        if (mVisible.isEmpty()) {
+            return null;
+        }
+
+        int position = index % mVisible.size();
+        for (ServiceItem item : mVisible.values()) {
+            if (position-- == 0) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void RecordCallback(String name, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        long[] times = mCallbackTimes.get(name);
+        if (times == null) {
+            times = new long[3];
+            mCallbackTimes.put(name, times);
+        }
+        times[0]++;
+        times[1] += nanos;
+        times[2] = Math.max(times[2], nanos);
+    }
+
+    private void SampleTables() {
+        int knownPeers = mHelper.GetKnownPeerCount();
+        int outgoingLinks = mHelper.GetOutgoingLinkCount();
+        int incomingLinks = mHelper.GetIncomingLinkCount();
+        long heap = UsedHeap();
+
+        synchronized (this) {
+            mPeakKnownPeers = Math.max(mPeakKnownPeers, knownPeers);
+            mPeakOutgoingLinks = Math.max(mPeakOutgoingLinks, outgoingLinks);
+            mPeakIncomingLinks = Math.max(mPeakIncomingLinks, incomingLinks);
+            mPeakHeap = Math.max(mPeakHeap, heap);
+        }
+    }
+
+    private static long UsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public JSONObject GetStats() {
+        int knownPeers = mHelper.GetKnownPeerCount();
+        int outgoingLinks = mHelper.GetOutgoingLinkCount();
+        int incomingLinks = mHelper.GetIncomingLinkCount();
+        long heap = UsedHeap();
+        NativeEventDispatcher dispatcher = NativeEventDispatcher.getInstance();
+
+        JSONObject stats = new JSONObject();
+        synchronized (this) {
+            try {
+                stats.put("running", mRunning);
+                long endNanos = mRunning ? System.nanoTime() : mStopNanos;
+                stats.put("elapsedMillis", mStartNanos == 0 ? 0 : (endNanos - mStartNanos) / 1000000);
+
+                JSONObject peers = new JSONObject();
+                peers.put("visible", mVisible.size());
+                peers.put("created", mPeersCreated);
+                peers.put("churned", mPeersChurned);
+                stats.put("peers", peers);
+
+                JSONObject connects = new JSONObject();
+                connects.put("attempts", mConnectAttempts);
+                connects.put("succeeded", mConnectsSucceeded);
+                connects.put("failed", mConnectsFailed);
+                connects.put("connectorBusy", mConnectorBusy);
+                connects.put("ownConnects", mOwnConnects);
+                connects.put("ownConnectErrors", mOwnConnectErrors);
+                connects.put("incomingLinks", mIncomingLinks);
+                stats.put("connects", connects);
+
+                JSONObject callbacks = new JSONObject();
+                for (Map.Entry<String, long[]> entry : mCallbackTimes.entrySet()) {
+                    long[] times = entry.getValue();
+                    JSONObject callback = new JSONObject();
+                    callback.put("count", times[0]);
+                    callback.put("averageMicros", times[1] / times[0] / 1000);
+                    callback.put("maxMicros", times[2] / 1000);
+                    callbacks.put(entry.getKey(), callback);
+                }
+                stats.put("callbacks", callbacks);
+
+                JSONObject events = new JSONObject();
+                events.put("posted", dispatcher.GetPostedCount() - mEventsPostedAtStart);
+                events.put("delivered", dispatcher.GetDeliveredCount() - mEventsDeliveredAtStart);
+                events.put("jsCalls", dispatcher.GetJsCallCount() - mJsCallsAtStart);
+                events.put("jsCallMillis", (dispatcher.GetJsCallNanos() - mJsCallNanosAtStart) / 1000000);
+                stats.put("events", events);
+
+                JSONObject tables = new JSONObject();
+                tables.put("knownPeers", knownPeers);
+                tables.put("peakKnownPeers", Math.max(mPeakKnownPeers, knownPeers));
+                tables.put("outgoingLinks", outgoingLinks);
+                tables.put("peakOutgoingLinks", Math.max(mPeakOutgoingLinks, outgoingLinks));
+                tables.put("incomingLinks", incomingLinks);
+                tables.put("peakIncomingLinks", Math.max(mPeakIncomingLinks, incomingLinks));
+                tables.put("remoteLinks", mRemoteLinks.size());
+                stats.put("tables", tables);
+
+                JSONObject memory = new JSONObject();
+                memory.put("heapAtStartBytes", mHeapAtStart);
+                memory.put("heapBytes", heap);
+                memory.put("peakHeapBytes", Math.max(mPeakHeap, heap));
+                memory.put("heapGrowthBytes", heap - mHeapAtStart);
+                stats.put("memory", memory);
+            } catch (JSONException e) {
+                Log.i("PeerSwarmSimulator","JSONException : " + e.toString());
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,202 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable relay buffers shared by all bridged connections.
+ *
+ * Buffers are heap ByteBuffers, since the Bluetooth streams need a backing byte[] anyway.
+ * The buffer size is tracked separately for Bluetooth and localhost reads: when reads keep filling
+ * the whole buffer it is doubled, and when they only use a small part of it it is halved.
+ */
+class RelayBufferPool {
+
+    enum Side { BLUETOOTH, LOCALHOST }
+
+    public static final int MIN_BUFFER_SIZE = 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 64;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
+    private static final int DEFAULT_MAX_POOLED_PER_SIZE = 64;
+
+    // how many reads we look at before deciding whether to grow or shrink
+    private static final int ADAPT_SAMPLE_COUNT = 32;
+
+    // one free list for each power of two between MIN_BUFFER_SIZE and MAX_BUFFER_SIZE
+    private final ConcurrentLinkedQueue<ByteBuffer>[] mFreeLists;
+    private final AtomicInteger[] mFreeCounts;
+
+    private final int[] mCurrentSize = new int[Side.values().length];
+    private final AtomicInteger[] mSampleCount = new AtomicInteger[Side.values().length];
+    private final AtomicInteger[] mFullReads = new AtomicInteger[Side.values().length];
+    private final AtomicInteger[] mSmallReads = new AtomicInteger[Side.values().length];
+
+    private volatile boolean mAdaptive = true;
+    private volatile int mMaxPooledPerSize = DEFAULT_MAX_POOLED_PER_SIZE;
+
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicInteger mOutstanding = new AtomicInteger(0);
+    private final AtomicInteger mHighWaterMark = new AtomicInteger(0);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RelayBufferPool() {
+        int classCount = SizeClass(MAX_BUFFER_SIZE) + 1;
+        mFreeLists = new ConcurrentLinkedQueue[classCount];
+        mFreeCounts = new AtomicInteger[classCount];
+        for (int i = 0; i < classCount; i++) {
+            mFreeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            mFreeCounts[i] = new AtomicInteger(0);
+        }
+
+        for (int i = 0; i < mCurrentSize.length; i++) {
+            mCurrentSize[i] = DEFAULT_BUFFER_SIZE;
+            mSampleCount[i] = new AtomicInteger(0);
+            mFullReads[i] = new AtomicInteger(0);
+            mSmallReads[i] = new AtomicInteger(0);
+        }
+    }
+
+    public ByteBuffer Acquire(Side side) {
+        return Acquire(mCurrentSize[side.ordinal()]);
+    }
+
+    // a buffer of at least minCapacity bytes, up to MAX_BUFFER_SIZE
+    public ByteBuffer Acquire(int minCapacity) {
+        int sizeClass = SizeClass(Math.min(MAX_BUFFER_SIZE, minCapacity));
+        int size = MIN_BUFFER_SIZE << sizeClass;
+
+        ByteBuffer buffer = mFreeLists[sizeClass].poll();
+        if (buffer != null) {
+            mFreeCounts[sizeClass].decrementAndGet();
+            mHits.incrementAndGet();
+            buffer.clear();
+        } else {
+            mMisses.incrementAndGet();
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        int outstanding = mOutstanding.incrementAndGet();
+        int highWater = mHighWaterMark.get();
+        while (outstanding > highWater && !mHighWaterMark.compareAndSet(highWater, outstanding)) {
+            highWater = mHighWaterMark.get();
+        }
+        return buffer;
+    }
+
+    public void Release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        mOutstanding.decrementAndGet();
+
+        int capacity = buffer.capacity();
+        int sizeClass = SizeClass(capacity);
+        if ((MIN_BUFFER_SIZE << sizeClass) != capacity) {
+            // not one of ours, let the GC have it
+            return;
+        }
+
+        if (mFreeCounts[sizeClass].incrementAndGet() > mMaxPooledPerSize) {
+            mFreeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        mFreeLists[sizeClass].add(buffer);
+    }
+
+    // called after each read so the buffer size can follow the traffic on that side
+    public void RecordRead(Side side, int bytesRead, int capacity) {
+        if (!mAdaptive || bytesRead <= 0) {
+            return;
+        }
+
+        int index = side.ordinal();
+        if (bytesRead >= capacity) {
+            mFullReads[index].incrementAndGet();
+        } else if (bytesRead <= capacity / 4) {
+            mSmallReads[index].incrementAndGet();
+        }
+
+        if (mSampleCount[index].incrementAndGet() < ADAPT_SAMPLE_COUNT) {
+            return;
+        }
+
+        int fullReads = mFullReads[index].getAndSet(0);
+        int smallReads = mSmallReads[index].getAndSet(0);
+        mSampleCount[index].set(0);
+
+        int size = mCurrentSize[index];
+        if (fullReads * 4 >= ADAPT_SAMPLE_COUNT * 3 && size < MAX_BUFFER_SIZE) {
+            mCurrentSize[index] = size * 2;
+        } else if (smallReads * 4 >= ADAPT_SAMPLE_COUNT * 3 && size > MIN_BUFFER_SIZE) {
+            mCurrentSize[index] = size / 2;
+        }
+    }
+
+    // sets the size for both sides, adaptive sizing will continue from this value if enabled
+    public void SetBufferSize(int size) {
+        int sizeClass = SizeClass(Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size)));
+        for (int i = 0; i < mCurrentSize.length; i++) {
+            mCurrentSize[i] = MIN_BUFFER_SIZE << sizeClass;
+        }
+    }
+
+    public void SetAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    public void SetMaxPooledPerSize(int maxPooled) {
+        mMaxPooledPerSize = Math.max(0, maxPooled);
+        if (mMaxPooledPerSize == 0) {
+            Clear();
+        }
+    }
+
+    public void Clear() {
+        for (int i = 0; i < mFreeLists.length; i++) {
+            while (mFreeLists[i].poll() != null) {
+                mFreeCounts[i].decrementAndGet();
+            }
+        }
+    }
+
+    public int GetBufferSize(Side side) {
+        return mCurrentSize[side.ordinal()];
+    }
+
+    public int GetOutstanding() {
+        return mOutstanding.get();
+    }
+
+    public JSONObject GetStats() throws JSONException {
+        int pooled = 0;
+        for (AtomicInteger count : mFreeCounts) {
+            pooled += count.get();
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("hits", mHits.get());
+        stats.put("misses", mMisses.get());
+        stats.put("highWaterMark", mHighWaterMark.get());
+        stats.put("outstanding", mOutstanding.get());
+        stats.put("pooled", pooled);
+        stats.put("adaptive", mAdaptive);
+        stats.put("bluetoothBufferSize", GetBufferSize(Side.BLUETOOTH));
+        stats.put("localhostBufferSize", GetBufferSize(Side.LOCALHOST));
+        return stats;
+    }
+
+    // index of the smallest power of two class that fits the size
+    private static int SizeClass(int size) {
+        int sizeClass = 0;
+        while ((MIN_BUFFER_SIZE << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
@@ -0,0 +1,283 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared relay engine for all Bluetooth bridges.
+ *
+ * The localhost side of every BtToRequestSocket/BtToServerSocket is served by one selector thread,
+ * and data going out to Bluetooth is written by a small fixed pool. Blocking localhost connects get
+ * their own thread, so a slow local server can not hold up either of them. These threads are shared
+ * by all links, but the relay as a whole still has one thread per link: Bluetooth reads stay with the
+ * link thread itself. BluetoothSocket only offers blocking streams, whose available() reads 0 both
+ * when a link is idle and when the remote end has gone, so the reads can't be polled from a shared
+ * pool without missing disconnects. Unix-domain local connections are blocking as well, and add a
+ * reader thread per stream and an accept thread per framed outgoing link.
+ */
+class RelayEngine {
+
+    interface ChannelHandler {
+        void OnLocalReadable(SelectableChannel channel);
+        void OnLocalWritable(SelectableChannel channel);
+        void OnLocalAcceptable(SelectableChannel channel);
+    }
+
+    public static final int DEFAULT_BT_WRITER_COUNT = 4;
+
+    private final RelayBufferPool mBufferPool = new RelayBufferPool();
+    private final BandwidthScheduler mScheduler = new BandwidthScheduler(this, DEFAULT_BT_WRITER_COUNT);
+    private final ConnectTimings mConnectTimings = new ConnectTimings();
+    private final RelayTrace mTrace = new RelayTrace(RelayTrace.DEFAULT_CAPACITY);
+
+    private volatile SelectorLoop mLoop = null;
+    private volatile ScheduledExecutorService mBtWriters = null;
+    private volatile ScheduledExecutorService mLocalConnects = null;
+
+    public synchronized void Start() throws IOException {
+        if (mLoop != null) {
+            return;
+        }
+
+        SelectorLoop tmpLoop = new SelectorLoop(Selector.open());
+        mBtWriters = Executors.newScheduledThreadPool(DEFAULT_BT_WRITER_COUNT);
+        mLocalConnects = Executors.newSingleThreadScheduledExecutor();
+        mLoop = tmpLoop;
+        tmpLoop.start();
+        RelayLog.i("RelayEngine", "Started with " + DEFAULT_BT_WRITER_COUNT + " Bluetooth writers");
+    }
+
+    public synchronized void Stop() {
+        SelectorLoop tmpLoop = mLoop;
+        mLoop = null;
+        if (tmpLoop == null) {
+            return;
+        }
+
+        ScheduledExecutorService tmpWriters = mBtWriters;
+        mBtWriters = null;
+        if (tmpWriters != null) {
+            tmpWriters.shutdownNow();
+        }
+
+        ScheduledExecutorService tmpConnects = mLocalConnects;
+        mLocalConnects = null;
+        if (tmpConnects != null) {
+            tmpConnects.shutdownNow();
+        }
+
+        tmpLoop.Stop();
+        RelayLog.i("RelayEngine", "Stopped");
+    }
+
+    public boolean isRunning() {
+        return mLoop != null;
+    }
+
+    public RelayBufferPool GetBufferPool() {
+        return mBufferPool;
+    }
+
+    public BandwidthScheduler GetScheduler() {
+        return mScheduler;
+    }
+
+    public ConnectTimings GetConnectTimings() {
+        return mConnectTimings;
+    }
+
+    public RelayTrace GetTrace() {
+        return mTrace;
+    }
+
+    // the channel must already be in non-blocking mode
+    public void Register(SelectableChannel channel, ChannelHandler handler) {
+        Register(channel, handler, SelectionKey.OP_READ);
+    }
+
+    public void Register(final SelectableChannel channel, final ChannelHandler handler, final int ops) {
+        final SelectorLoop tmpLoop = mLoop;
+        if (tmpLoop == null) {
+            return;
+        }
+
+        tmpLoop.Post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(tmpLoop.mSelector, ops, handler);
+                } catch (ClosedChannelException e) {
+                    RelayLog.i("RelayEngine", "Register failed, channel already closed");
+                }
+            }
+        });
+    }
+
+    public void EnableInterest(SelectableChannel channel, int op) {
+        SelectorLoop tmpLoop = mLoop;
+        if (tmpLoop != null) {
+            tmpLoop.ChangeInterest(channel, op, true);
+        }
+    }
+
+    public void DisableInterest(SelectableChannel channel, int op) {
+        SelectorLoop tmpLoop = mLoop;
+        if (tmpLoop != null) {
+            tmpLoop.ChangeInterest(channel, op, false);
+        }
+    }
+
+    public boolean ExecuteBtWrite(Runnable task) {
+        ScheduledExecutorService tmpWriters = mBtWriters;
+        if (tmpWriters == null) {
+            return false;
+        }
+
+        try {
+            tmpWriters.execute(task);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // runs a short task on the Bluetooth writer pool after the delay, e.g. link timeouts
+    public boolean Schedule(Runnable task, long delayMillis) {
+        return ScheduleBtWrite(task, delayMillis * 1000);
+    }
+
+    public boolean ScheduleBtWrite(Runnable task, long delayMicros) {
+        ScheduledExecutorService tmpWriters = mBtWriters;
+        if (tmpWriters == null) {
+            return false;
+        }
+
+        try {
+            tmpWriters.schedule(task, delayMicros, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // runs a task that may block on a localhost connect, in order with the other connects
+    public boolean ExecuteLocalConnect(Runnable task) {
+        return ScheduleLocalConnect(task, 0);
+    }
+
+    public boolean ScheduleLocalConnect(Runnable task, long delayMillis) {
+        ScheduledExecutorService tmpConnects = mLocalConnects;
+        if (tmpConnects == null) {
+            return false;
+        }
+
+        try {
+            tmpConnects.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    // Owns one selector and its thread, a restarted engine always gets a fresh loop
+    private static class SelectorLoop extends Thread {
+
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean mStopped = false;
+
+        SelectorLoop(Selector selector) {
+            super("RelayEngine");
+            mSelector = selector;
+        }
+
+        void Post(Runnable task) {
+            mPendingTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void Stop() {
+            mStopped = true;
+            mSelector.wakeup();
+        }
+
+        void ChangeInterest(final SelectableChannel channel, final int op, final boolean enable) {
+            if (Thread.currentThread() != this) {
+                Post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ChangeInterest(channel, op, enable);
+                    }
+                });
+                return;
+            }
+
+            SelectionKey key = channel.keyFor(mSelector);
+            if (key == null || !key.isValid()) {
+                return;
+            }
+
+            try {
+                int ops = key.interestOps();
+                key.interestOps(enable ? (ops | op) : (ops & ~op));
+            } catch (CancelledKeyException e) {
+                // channel was closed while the request was pending, nothing to do
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    RelayLog.w("RelayEngine", "select failed : " + e.toString());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    ChannelHandler handler = (ChannelHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            handler.OnLocalAcceptable(key.channel());
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            handler.OnLocalReadable(key.channel());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.OnLocalWritable(key.channel());
+                        }
+                    } catch (CancelledKeyException e) {
+                        // link was stopped from another thread while we were handling it
+                    }
+                }
+            }
+
+            mPendingTasks.clear();
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                RelayLog.i("RelayEngine", "Close error : " + e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package io.jxcore.node;
+
+/**
+ * Logging of the relay core, so it does not depend on android.util.Log.
+ *
+ * Messages go to System.out until a sink is set, on the device BtConnectorHelper sends them to logcat.
+ * A null sink drops them, e.g. while benchmarking.
+ *
+ * i() is the verbose log of what the bridges do, and is only written when verbose logging is on, the
+ * RelayTrace records the events that matter without building any strings. w() is for failures and always written.
+ * Callers on per-stream paths check IsVerbose() first, so they don't build the message for nothing.
+ */
+public final class RelayLog {
+
+    public enum Level {
+        INFO,
+        WARN
+    }
+
+    public interface Sink {
+        void Write(Level level, String tag, String message);
+    }
+
+    private static volatile Sink mSink = new Sink() {
+        @Override
+        public void Write(Level level, String tag, String message) {
+            System.out.println(tag + ": " + message);
+        }
+    };
+
+    private static volatile boolean mVerbose = false;
+
+    private RelayLog() {
+    }
+
+    public static void SetVerbose(boolean verbose) {
+        mVerbose = verbose;
+    }
+
+    public static boolean IsVerbose() {
+        return mVerbose;
+    }
+
+    public static void SetSink(Sink sink) {
+        mSink = sink;
+    }
+
+    public static void i(String tag, String message) {
+        if (mVerbose) {
+            Write(Level.INFO, tag, message);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        Write(Level.WARN, tag, message);
+    }
+
+    private static void Write(Level level, String tag, String message) {
+        Sink tmpSink = mSink;
+        if (tmpSink != null) {
+            tmpSink.Write(level, tag, message);
+        }
+    }
+}
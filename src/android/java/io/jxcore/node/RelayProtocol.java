@@ -0,0 +1,101 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format used on the Bluetooth leg when both ends agree on it at link set-up.
+ *
+ * The requesting side starts the link with a hello (magic, version, wanted flags), and the serving side
+ * answers with the same header carrying the flags it accepted. Without a hello the link is a plain byte
+ * relay, as with older versions, so the serving side only switches to frames when the magic is there.
+ *
+ * Frames are a 9 byte header (type, stream id, length) followed by length bytes of payload.
+ * For WINDOW frames the length field carries the credit and there is no payload, OPEN, FIN and CLOSE have none either.
+ * Compressed frames share one deflate stream per link direction, so they must be inflated in the order they were sent.
+ */
+final class RelayProtocol {
+
+    public static final byte[] MAGIC = {'T', 'H', 'L', 'I'};
+    public static final byte VERSION = 1;
+    public static final int HELLO_SIZE = MAGIC.length + 2;
+
+    // many local connections over this link, each in its own stream
+    public static final int FLAG_MULTIPLEX = 0x01;
+    // larger DATA frames may be sent deflated, needs frames so it implies the framed link as well
+    public static final int FLAG_COMPRESS = 0x02;
+    // a stream's local connection can end one direction with FIN and still get data in the other,
+    // only asked for together with one of the flags above, since it needs frames
+    public static final int FLAG_HALF_CLOSE = 0x04;
+    public static final int SUPPORTED_FLAGS = FLAG_MULTIPLEX | FLAG_COMPRESS | FLAG_HALF_CLOSE;
+
+    public static final byte FRAME_OPEN = 1;
+    public static final byte FRAME_DATA = 2;
+    public static final byte FRAME_WINDOW = 3;
+    public static final byte FRAME_CLOSE = 4;
+    // payload is the uncompressed length (int) followed by the deflated data, sync flushed at the frame end
+    public static final byte FRAME_DATA_COMPRESSED = 5;
+    public static final int COMPRESSED_PREFIX_SIZE = 4;
+    // the sender's local connection will send no more, the stream is gone once both ends sent FIN.
+    // CLOSE still ends both directions at once
+    public static final byte FRAME_FIN = 6;
+
+    public static final int HEADER_SIZE = 9;
+    // how much a stream may send before it has to wait for credit from the receiving end
+    public static final int INITIAL_WINDOW = 1024 * 64;
+
+    private RelayProtocol() {
+    }
+
+    // whether the link is framed with these flags accepted by both ends
+    public static boolean IsFramed(int acceptedFlags) {
+        return (acceptedFlags & (FLAG_MULTIPLEX | FLAG_COMPRESS)) != 0;
+    }
+
+    public static void WriteHello(OutputStream out, int flags) throws IOException {
+        byte[] hello = new byte[HELLO_SIZE];
+        System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+        hello[MAGIC.length] = VERSION;
+        hello[MAGIC.length + 1] = (byte) flags;
+        out.write(hello);
+        out.flush();
+    }
+
+    // reads the hello answer on the requesting side, returns the accepted flags
+    public static int ReadHelloReply(InputStream in) throws IOException {
+        byte[] hello = new byte[HELLO_SIZE];
+        ReadFully(in, hello, 0, HELLO_SIZE);
+        if (MatchingMagicBytes(hello, HELLO_SIZE) != MAGIC.length || hello[MAGIC.length] != VERSION) {
+            throw new IOException("invalid hello reply from remote peer");
+        }
+        return hello[MAGIC.length + 1] & 0xFF;
+    }
+
+    // how many bytes from the start of data match the magic, MAGIC.length if all of it is there
+    public static int MatchingMagicBytes(byte[] data, int count) {
+        int i = 0;
+        while (i < MAGIC.length && i < count && data[i] == MAGIC[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    public static void PutHeader(ByteBuffer buffer, int offset, byte type, int streamId, int length) {
+        buffer.put(offset, type);
+        buffer.putInt(offset + 1, streamId);
+        buffer.putInt(offset + 5, length);
+    }
+
+    public static void ReadFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = in.read(buffer, offset, length);
+            if (n == -1) {
+                throw new IOException("input stream got -1 on read");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package io.jxcore.node;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency counters for one bridged connection.
+ *
+ * Each direction counts the chunks read from its source, and the time spent in reading from
+ * the source and writing to the destination, so slow peers can be told apart from slow local clients.
+ * Time spent backpressured shows how long the source was held back because the destination could not keep up.
+ */
+class RelayStats {
+
+    static class Direction {
+        private final AtomicLong mBytes = new AtomicLong(0);
+        private final AtomicLong mChunks = new AtomicLong(0);
+        private final AtomicLong mMaxChunk = new AtomicLong(0);
+        private final AtomicLong mReadNanos = new AtomicLong(0);
+        private final AtomicLong mWriteNanos = new AtomicLong(0);
+
+        // time the source was not read because the queue for this direction was over its high watermark
+        private final AtomicLong mBackpressureSinceNanos = new AtomicLong(0);
+        private final AtomicLong mBackpressureNanos = new AtomicLong(0);
+        private final AtomicLong mBackpressureCount = new AtomicLong(0);
+        private final AtomicLong mMaxQueued = new AtomicLong(0);
+
+        public void AddChunk(int size) {
+            mBytes.addAndGet(size);
+            mChunks.incrementAndGet();
+
+            long max = mMaxChunk.get();
+            while (size > max && !mMaxChunk.compareAndSet(max, size)) {
+                max = mMaxChunk.get();
+            }
+        }
+
+        public void AddReadTime(long nanos) {
+            mReadNanos.addAndGet(nanos);
+        }
+
+        public void AddWriteTime(long nanos) {
+            mWriteNanos.addAndGet(nanos);
+        }
+
+        public void BackpressureStarted() {
+            if (mBackpressureSinceNanos.compareAndSet(0, System.nanoTime())) {
+                mBackpressureCount.incrementAndGet();
+            }
+        }
+
+        public void BackpressureEnded() {
+            long since = mBackpressureSinceNanos.getAndSet(0);
+            if (since != 0) {
+                mBackpressureNanos.addAndGet(System.nanoTime() - since);
+            }
+        }
+
+        public void RecordQueued(long queuedBytes) {
+            long max = mMaxQueued.get();
+            while (queuedBytes > max && !mMaxQueued.compareAndSet(max, queuedBytes)) {
+                max = mMaxQueued.get();
+            }
+        }
+
+        // includes the ongoing backpressure period, if any
+        public long GetBackpressureMillis() {
+            long nanos = mBackpressureNanos.get();
+            long since = mBackpressureSinceNanos.get();
+            if (since != 0) {
+                nanos += System.nanoTime() - since;
+            }
+            return nanos / 1000000;
+        }
+
+        public long GetBytes() {
+            return mBytes.get();
+        }
+
+        public JSONObject ToJSON() throws JSONException {
+            long chunks = mChunks.get();
+
+            JSONObject json = new JSONObject();
+            json.put("bytes", mBytes.get());
+            json.put("chunks", chunks);
+            json.put("averageChunkSize", chunks == 0 ? 0 : mBytes.get() / chunks);
+            json.put("maxChunkSize", mMaxChunk.get());
+            json.put("readMillis", mReadNanos.get() / 1000000);
+            json.put("writeMillis", mWriteNanos.get() / 1000000);
+            json.put("maxQueuedBytes", mMaxQueued.get());
+            json.put("backpressured", mBackpressureSinceNanos.get() != 0);
+            json.put("backpressureCount", mBackpressureCount.get());
+            json.put("backpressureMillis", GetBackpressureMillis());
+            return json;
+        }
+    }
+
+    // localhost -> Bluetooth, read time is spent on the local socket, write time on the Bluetooth stream
+    public final Direction ToBluetooth = new Direction();
+    // Bluetooth -> localhost, read time is spent on the Bluetooth stream, write time on the local socket
+    public final Direction ToLocal = new Direction();
+
+    // compression of the Bluetooth leg, deflated is what we sent, inflated what we received
+    private final AtomicLong mDeflatedIn = new AtomicLong(0);
+    private final AtomicLong mDeflatedOut = new AtomicLong(0);
+    private final AtomicLong mDeflateNanos = new AtomicLong(0);
+    private final AtomicLong mInflatedIn = new AtomicLong(0);
+    private final AtomicLong mInflatedOut = new AtomicLong(0);
+    private final AtomicLong mInflateNanos = new AtomicLong(0);
+
+    private final long mCreatedNanos = System.nanoTime();
+    private final AtomicLong mFirstByteNanos = new AtomicLong(0);
+    // last time anything was relayed, used to pick the least recently used link
+    private volatile long mLastActivityNanos = mCreatedNanos;
+
+    // called for every chunk relayed in either direction, returns true for the link's first one
+    public boolean MarkActivity() {
+        long now = System.nanoTime();
+        mLastActivityNanos = now;
+        return mFirstByteNanos.get() == 0 && mFirstByteNanos.compareAndSet(0, now);
+    }
+
+    public long GetLastActivityNanos() {
+        return mLastActivityNanos;
+    }
+
+    public void AddDeflated(int originalBytes, int compressedBytes, long nanos) {
+        mDeflatedIn.addAndGet(originalBytes);
+        mDeflatedOut.addAndGet(compressedBytes);
+        mDeflateNanos.addAndGet(nanos);
+    }
+
+    public void AddInflated(int compressedBytes, int originalBytes, long nanos) {
+        mInflatedIn.addAndGet(compressedBytes);
+        mInflatedOut.addAndGet(originalBytes);
+        mInflateNanos.addAndGet(nanos);
+    }
+
+    // when the link was created, which is when the connector handed it over
+    public long GetCreatedNanos() {
+        return mCreatedNanos;
+    }
+
+    public long GetUptimeMillis() {
+        return (System.nanoTime() - mCreatedNanos) / 1000000;
+    }
+
+    public JSONObject ToJSON() throws JSONException {
+        long firstByte = mFirstByteNanos.get();
+
+        JSONObject json = new JSONObject();
+        json.put("uptimeMillis", GetUptimeMillis());
+        // -1 until the first byte has been relayed in either direction
+        json.put("connectToFirstByteMillis", firstByte == 0 ? -1 : (firstByte - mCreatedNanos) / 1000000);
+        json.put("toBluetooth", ToBluetooth.ToJSON());
+        json.put("toLocal", ToLocal.ToJSON());
+
+        long deflatedIn = mDeflatedIn.get();
+        long inflatedOut = mInflatedOut.get();
+        JSONObject compression = new JSONObject();
+        compression.put("sentBytes", deflatedIn);
+        compression.put("sentCompressedBytes", mDeflatedOut.get());
+        // compressed size / original size, 1 when nothing has been compressed
+        compression.put("sentRatio", deflatedIn == 0 ? 1.0 : (double) mDeflatedOut.get() / deflatedIn);
+        compression.put("deflateMillis", mDeflateNanos.get() / 1000000);
+        compression.put("receivedBytes", inflatedOut);
+        compression.put("receivedCompressedBytes", mInflatedIn.get());
+        compression.put("receivedRatio", inflatedOut == 0 ? 1.0 : (double) mInflatedIn.get() / inflatedOut);
+        compression.put("inflateMillis", mInflateNanos.get() / 1000000);
+        json.put("compression", compression);
+        return json;
+    }
+}
@@ -0,0 +1,411 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One localhost connection relayed over a Bluetooth link.
+ *
+ * A plain link has exactly one stream and relays its bytes as they are. On a multiplexed link every
+ * local connection is its own stream: its data goes out in DATA frames, and it may only have
+ * INITIAL_WINDOW bytes in flight until the other end sends WINDOW credit for what it has written out.
+ *
+ * The local side is either a SocketChannel served by the relay selector, or a blocking Unix-domain
+ * LinkTransport. That can not be selected on, so such a stream reads on its own thread, and data for it is
+ * written right away by the Bluetooth reader, which also makes the reader wait for a slow local client.
+ *
+ * On links with half-close either direction can end on its own: the local input ending is sent as FIN,
+ * and a FIN from the other end shuts down our local output once everything before it has been written.
+ */
+class RelayStream implements RelayEngine.ChannelHandler {
+
+    private final BtToSocketBase mLink;
+    private final RelayEngine mRelayEngine;
+    private final RelayBufferPool mBufferPool;
+    private final int mId;
+    private final boolean mFramed;
+    private final SocketChannel mChannel;
+    // set instead of mChannel for Unix-domain streams
+    private final LinkTransport mLocalTransport;
+
+    // Bluetooth -> localhost, filled by the Bluetooth reader and drained by the relay selector
+    private final ConcurrentLinkedQueue<ByteBuffer> mToLocalQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger mToLocalBytes = new AtomicInteger(0);
+
+    // bytes we may still send before the other end gives more credit, unlimited for plain links
+    private final AtomicInteger mSendWindow;
+    // bytes written to the local socket that have not been credited back yet,
+    // only touched by the selector thread, or by the Bluetooth reader for Unix-domain streams
+    private int mConsumedSinceCredit = 0;
+
+    private boolean mReadPaused = false;
+    private volatile boolean mCloseAfterDrain = false;
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    // half-close: the input ends once the local connection has sent all it will send,
+    // the output is shut down once the other end did the same and what it sent was written out
+    private volatile boolean mInputEnded = false;
+    private volatile boolean mShutdownAfterDrain = false;
+    private final AtomicBoolean mOutputShutdown = new AtomicBoolean(false);
+    private volatile long mLastToLocalNanos = System.nanoTime();
+
+    RelayStream(BtToSocketBase link, int id, SocketChannel channel, boolean framed) {
+        this(link, id, channel, null, framed);
+    }
+
+    RelayStream(BtToSocketBase link, int id, LinkTransport socket, boolean framed) {
+        this(link, id, null, socket, framed);
+    }
+
+    private RelayStream(BtToSocketBase link, int id, SocketChannel channel, LinkTransport socket, boolean framed) {
+        mLink = link;
+        mRelayEngine = link.mRelayEngine;
+        mBufferPool = link.mRelayEngine.GetBufferPool();
+        mId = id;
+        mChannel = channel;
+        mLocalTransport = socket;
+        mFramed = framed;
+        mSendWindow = new AtomicInteger(framed ? RelayProtocol.INITIAL_WINDOW : Integer.MAX_VALUE);
+    }
+
+    // starts the reader thread of a Unix-domain stream
+    public void StartLocalTransportReader() throws IOException {
+        final InputStream in = mLocalTransport.GetInputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReadLocalTransport(in);
+            }
+        }, "RelayStream-" + mId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public int GetId() {
+        return mId;
+    }
+
+    public SocketChannel GetChannel() {
+        return mChannel;
+    }
+
+    public int GetQueuedToLocal() {
+        return mToLocalBytes.get();
+    }
+
+    public boolean IsClosed() {
+        return mClosed.get();
+    }
+
+    public boolean IsInputEnded() {
+        return mInputEnded;
+    }
+
+    public boolean IsOutputShutdown() {
+        return mOutputShutdown.get();
+    }
+
+    // when data for the local connection last came in from Bluetooth
+    public long GetLastToLocalNanos() {
+        return mLastToLocalNanos;
+    }
+
+    //this is always called in context of the relay selector thread
+    @Override
+    public void OnLocalReadable(SelectableChannel channel) {
+        ByteBuffer buffer = AcquireReadBuffer();
+
+        int n;
+        long startNanos = System.nanoTime();
+        try {
+            n = mChannel.read(buffer);
+            mLink.mStats.ToBluetooth.AddReadTime(System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            mBufferPool.Release(buffer);
+            //local socket is giving error, thus we are getting local disconnection
+            mLink.OnStreamEnded(this, "disconnected: " + e.toString());
+            return;
+        }
+
+        OnLocalRead(buffer, n);
+    }
+
+    private void ReadLocalTransport(InputStream in) {
+        while (!mClosed.get()) {
+            synchronized (this) {
+                while (mReadPaused && !mClosed.get()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            ByteBuffer buffer = AcquireReadBuffer();
+            int n;
+            long startNanos = System.nanoTime();
+            try {
+                n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                mLink.mStats.ToBluetooth.AddReadTime(System.nanoTime() - startNanos);
+            } catch (IOException e) {
+                mBufferPool.Release(buffer);
+                mLink.OnStreamEnded(this, "disconnected: " + e.toString());
+                return;
+            }
+
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+            if (!OnLocalRead(buffer, n)) {
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer AcquireReadBuffer() {
+        ByteBuffer buffer = mBufferPool.Acquire(RelayBufferPool.Side.LOCALHOST);
+        if (mFramed) {
+            // leave room for the frame header, and never read more than the window allows
+            buffer.position(RelayProtocol.HEADER_SIZE);
+            int room = Math.min(buffer.remaining(), mSendWindow.get());
+            buffer.limit(RelayProtocol.HEADER_SIZE + Math.max(0, room));
+        }
+        return buffer;
+    }
+
+    // n bytes were read into the buffer, returns false once the local side has ended
+    private boolean OnLocalRead(ByteBuffer buffer, int n) {
+        if (n == -1) {
+            mBufferPool.Release(buffer);
+            // stop selecting for read, a channel at its end stays readable
+            mInputEnded = true;
+            UpdateReadInterest();
+            mLink.OnStreamInputEnded(this, "local input stream got -1 on read");
+            return false;
+        }
+
+        mBufferPool.RecordRead(RelayBufferPool.Side.LOCALHOST, n, buffer.capacity());
+        if (n == 0) {
+            mBufferPool.Release(buffer);
+            UpdateReadInterest();
+            return true;
+        }
+
+        mLink.MarkActivity();
+        mLink.mStats.ToBluetooth.AddChunk(n);
+
+        buffer.flip();
+        if (mFramed) {
+            RelayProtocol.PutHeader(buffer, 0, RelayProtocol.FRAME_DATA, mId, n);
+            mSendWindow.addAndGet(-n);
+        }
+
+        mLink.QueueToBluetooth(buffer);
+        UpdateReadInterest();
+        return true;
+    }
+
+    //this is always called in context of the relay selector thread
+    @Override
+    public void OnLocalWritable(SelectableChannel channel) {
+        ByteBuffer buffer;
+        while ((buffer = mToLocalQueue.peek()) != null) {
+            int n;
+            long startNanos = System.nanoTime();
+            try {
+                n = mChannel.write(buffer);
+                mLink.mStats.ToLocal.AddWriteTime(System.nanoTime() - startNanos);
+            } catch (IOException e) {
+                mLink.OnStreamEnded(this, "disconnected: " + e.toString());
+                return;
+            }
+
+            mToLocalBytes.addAndGet(-n);
+            mConsumedSinceCredit += n;
+            if (buffer.hasRemaining()) {
+                // socket buffer is full, we'll get called again once it can take more
+                break;
+            }
+            mBufferPool.Release(mToLocalQueue.poll());
+        }
+
+        SendCreditIfDue();
+
+        if (mToLocalQueue.isEmpty()) {
+            mRelayEngine.DisableInterest(channel, SelectionKey.OP_WRITE);
+            if (mCloseAfterDrain) {
+                Close();
+                return;
+            }
+            if (mShutdownAfterDrain) {
+                ShutdownOutput();
+                return;
+            }
+        }
+
+        mLink.OnLocalDrained(this);
+    }
+
+    @Override
+    public void OnLocalAcceptable(SelectableChannel channel) {
+        // streams never listen
+    }
+
+    private void SendCreditIfDue() {
+        if (mFramed && mConsumedSinceCredit >= RelayProtocol.INITIAL_WINDOW / 2) {
+            mLink.SendFrame(RelayProtocol.FRAME_WINDOW, mId, mConsumedSinceCredit);
+            mConsumedSinceCredit = 0;
+        }
+    }
+
+    // called by the Bluetooth reader with data for this stream, returns the bytes now queued
+    public int QueueToLocal(ByteBuffer buffer) {
+        mLastToLocalNanos = System.nanoTime();
+        if (mLocalTransport != null) {
+            WriteToLocalTransport(buffer);
+            return 0;
+        }
+
+        mToLocalQueue.add(buffer);
+        int queued = mToLocalBytes.addAndGet(buffer.remaining());
+
+        if (mClosed.get()) {
+            // Close() may have already emptied the queue, make sure the buffer goes back to the pool
+            ReleaseQueued();
+            return 0;
+        }
+
+        mRelayEngine.EnableInterest(mChannel, SelectionKey.OP_WRITE);
+        return queued;
+    }
+
+    private void WriteToLocalTransport(ByteBuffer buffer) {
+        if (mClosed.get()) {
+            mBufferPool.Release(buffer);
+            return;
+        }
+
+        int n = buffer.remaining();
+        long startNanos = System.nanoTime();
+        try {
+            OutputStream out = mLocalTransport.GetOutputStream();
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            mLink.mStats.ToLocal.AddWriteTime(System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            mBufferPool.Release(buffer);
+            mLink.OnStreamEnded(this, "disconnected: " + e.toString());
+            return;
+        }
+
+        mBufferPool.Release(buffer);
+        mConsumedSinceCredit += n;
+        SendCreditIfDue();
+    }
+
+    public void AddSendCredit(int credit) {
+        mSendWindow.addAndGet(credit);
+        UpdateReadInterest();
+    }
+
+    // reading from the local socket goes on only while we have window left and the link is not backed up
+    public synchronized void UpdateReadInterest() {
+        if (mClosed.get()) {
+            return;
+        }
+
+        boolean pause = mInputEnded || mSendWindow.get() <= 0 || mLink.IsBluetoothBackpressured();
+        if (pause == mReadPaused) {
+            return;
+        }
+
+        mReadPaused = pause;
+        if (mLocalTransport != null) {
+            // the reader thread waits while paused
+            notifyAll();
+        } else if (pause) {
+            mRelayEngine.DisableInterest(mChannel, SelectionKey.OP_READ);
+        } else {
+            mRelayEngine.EnableInterest(mChannel, SelectionKey.OP_READ);
+        }
+    }
+
+    // the other end is done with this stream, close once what it sent has been written out
+    public void CloseAfterDrain() {
+        mCloseAfterDrain = true;
+        if (mToLocalQueue.isEmpty()) {
+            Close();
+        } else {
+            mRelayEngine.EnableInterest(mChannel, SelectionKey.OP_WRITE);
+        }
+    }
+
+    // the other end will send no more, shut down our local output once what it sent has been written out
+    public void ShutdownOutputAfterDrain() {
+        mShutdownAfterDrain = true;
+        if (mLocalTransport != null || mToLocalQueue.isEmpty()) {
+            // Unix-domain streams are written by the Bluetooth reader itself, so nothing is waiting
+            ShutdownOutput();
+        } else {
+            mRelayEngine.EnableInterest(mChannel, SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void ShutdownOutput() {
+        if (mClosed.get() || !mOutputShutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (mChannel != null) {
+                mChannel.socket().shutdownOutput();
+            } else {
+                mLocalTransport.ShutdownOutput();
+            }
+        } catch (IOException e) {
+            mLink.OnStreamEnded(this, "shutting down output failed: " + e.toString());
+            return;
+        }
+        mLink.OnStreamOutputShutdown(this);
+    }
+
+    public void Close() {
+        if (!mClosed.compareAndSet(false, true)) {
+            return;
+        }
+
+        // closing the channel also cancels its registration with the relay selector,
+        // closing a local socket makes its reader thread fall out of read
+        try {
+            if (mChannel != null) {
+                mChannel.close();
+            } else {
+                mLocalTransport.Close();
+            }
+        } catch (IOException e) {
+            RelayLog.i("RelayStream","Close error : " + e.toString());
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+
+        ReleaseQueued();
+        mLink.OnStreamClosed(this);
+    }
+
+    private void ReleaseQueued() {
+        ByteBuffer buffer;
+        while ((buffer = mToLocalQueue.poll()) != null) {
+            mToLocalBytes.addAndGet(-buffer.remaining());
+            mBufferPool.Release(buffer);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.jxcore.node;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of binary trace records for the bridges, cheap enough to leave on in production.
+ *
+ * Recording claims a slot with one atomic increment and fills it in place, nothing is allocated and no lock
+ * is taken, and once the ring is full the oldest records are overwritten. Peer ids and error texts are kept
+ * by reference, they exist anyway when the event happens. Dump copies out the records that were complete
+ * while it read them, oldest first.
+ */
+class RelayTrace {
+
+    enum Event {
+        // value 1 for incoming links, 0 for outgoing
+        CONNECT,
+        CONNECT_FAILED,
+        // a local connection was handed to the relay, value is the count of local connections of the link so far
+        ACCEPT,
+        // value is the time from the link being created to its first relayed byte, in nanoseconds
+        FIRST_BYTE,
+        // a direction went over its high watermark (STALL) or back under the low one (RESUME), value is the queued bytes
+        STALL,
+        RESUME,
+        ERROR,
+        // a direction of a local connection ended, value 1 for its input (FIN sent), 0 for its output (FIN received)
+        HALF_CLOSE,
+        // a local connection closed
+        CLOSE,
+        // the link was stopped, value is its uptime in nanoseconds
+        STOP
+    }
+
+    // must be a power of two
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final Event[] EVENTS = Event.values();
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong(0);
+    // sequence number of the record in each slot, -1 while it is being written
+    private final AtomicLongArray mSeqs;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mValues;
+    private final AtomicIntegerArray mEvents;
+    private final AtomicIntegerArray mStreams;
+    private final AtomicReferenceArray<String> mPeers;
+    private final AtomicReferenceArray<String> mDetails;
+
+    private volatile boolean mEnabled = true;
+
+    public RelayTrace(int capacity) {
+        mMask = capacity - 1;
+        mSeqs = new AtomicLongArray(capacity);
+        mTimes = new AtomicLongArray(capacity);
+        mValues = new AtomicLongArray(capacity);
+        mEvents = new AtomicIntegerArray(capacity);
+        mStreams = new AtomicIntegerArray(capacity);
+        mPeers = new AtomicReferenceArray<String>(capacity);
+        mDetails = new AtomicReferenceArray<String>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSeqs.set(i, -1);
+        }
+    }
+
+    public void SetEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean IsEnabled() {
+        return mEnabled;
+    }
+
+    // detail may be null, streamId is 0 for the plain stream and for events of the whole link
+    public void Record(Event event, String peerId, int streamId, long value, String detail) {
+        if (!mEnabled) {
+            return;
+        }
+
+        long seq = mNext.getAndIncrement();
+        int slot = (int) seq & mMask;
+        mSeqs.set(slot, -1);
+        mTimes.set(slot, System.nanoTime());
+        mEvents.set(slot, event.ordinal());
+        mPeers.set(slot, peerId);
+        mStreams.set(slot, streamId);
+        mValues.set(slot, value);
+        mDetails.set(slot, detail);
+        mSeqs.set(slot, seq);
+    }
+
+    public long GetRecordedCount() {
+        return mNext.get();
+    }
+
+    public JSONArray Dump() throws JSONException {
+        long end = mNext.get();
+        long start = Math.max(0, end - (mMask + 1));
+        long nowNanos = System.nanoTime();
+
+        JSONArray records = new JSONArray();
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) seq & mMask;
+            if (mSeqs.get(slot) != seq) {
+                // still being written, or already overwritten
+                continue;
+            }
+
+            long timeNanos = mTimes.get(slot);
+            int event = mEvents.get(slot);
+            String peerId = mPeers.get(slot);
+            int streamId = mStreams.get(slot);
+            long value = mValues.get(slot);
+            String detail = mDetails.get(slot);
+            if (mSeqs.get(slot) != seq) {
+                continue;
+            }
+
+            JSONObject record = new JSONObject();
+            record.put("seq", seq);
+            record.put("timeNanos", timeNanos);
+            record.put("ageMillis", (nowNanos - timeNanos) / 1000000);
+            record.put("event", EVENTS[event].name().toLowerCase(Locale.US));
+            record.put("peerIdentifier", peerId == null ? "" : peerId);
+            record.put("stream", streamId);
+            record.put("value", value);
+            if (detail != null) {
+                record.put("detail", detail);
+            }
+            records.put(record);
+        }
+        return records;
+    }
+}
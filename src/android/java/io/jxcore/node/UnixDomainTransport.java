@@ -0,0 +1,21 @@
+package io.jxcore.node;
+
+import java.io.IOException;
+
+/**
+ * Makes and accepts the Unix-domain connections to node.js, see LocalConnector.UnixServerName and UnixLinkName.
+ * Implemented with android.net.LocalSocket on the device by AndroidUnixDomainTransport.
+ */
+public interface UnixDomainTransport {
+
+    interface Listener {
+        LinkTransport Accept() throws IOException;
+
+        // must also make an Accept blocked on another thread return
+        void Close();
+    }
+
+    LinkTransport Connect(String name) throws IOException;
+
+    Listener Listen(String name) throws IOException;
+}